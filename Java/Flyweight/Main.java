@@ -22,8 +22,39 @@
 // In other contexts the idea of sharing identical data structures
 // is called hash consing.
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
 
 public class Main {
 
@@ -62,6 +93,42 @@ public class Main {
         serie1Car.printFullCharacteristics(custom3);
         // It's the same BMW 2 Series Flyweight instance; the variant
         // part is provided by the operation and customs
+
+        // Repeated customisations can be shared the same way
+        FlyweightPool<BMWCarCustomisation> customisations =
+                new WeakFlyweightPool<>(custom -> BMWSerieCarCustomisation.SHALLOW_SIZE);
+        BMWCarCustomisation order1 = customisations.intern(new BMWSerieCarCustomisation(19, "Oh yeah"));
+        BMWCarCustomisation order2 = customisations.intern(new BMWSerieCarCustomisation(19, "Oh yeah"));
+        System.out.println("check for Object for Custom:" + (order1 == order2)
+                + ", bytes saved:" + customisations.bytesSaved());
+
+        // Quotes for repeated configurations can be served from a cache
+        CachingBMWCar cachedSerie1 = new CachingBMWCar(serie1Car, 1024, 4096);
+        cachedSerie1.calculatePrice(order1);
+        cachedSerie1.calculatePrice(order2);
+        System.out.println("quote cache hits:" + cachedSerie1.hitCount() + ", misses:" + cachedSerie1.missCount());
+
+        // Large batches of orders are priced a column at a time, to the bit
+        // the same prices as one order at a time
+        String[] signatures = {"", "Oh yeah", "For Bob", "give it a ride!"};
+        Random random = new Random(42);
+        List<BMWCarCustomisation> orders = new ArrayList<>();
+        CustomisationBatch batch = new CustomisationBatch(100_000);
+        for (int i = 0; i < 100_000; i++) {
+            BMWCarCustomisation order = new BMWSerieCarCustomisation(17 + random.nextInt(6),
+                    signatures[random.nextInt(signatures.length)]);
+            orders.add(order);
+            batch.add(order);
+        }
+        boolean identical = true;
+        for (BatchPricedBMWCar car : new BatchPricedBMWCar[] {new BMWSerie1(), new BMWSerie2()}) {
+            double[] prices = BatchPricingTask.calculatePrices(car, batch, ForkJoinPool.commonPool());
+            for (int i = 0; i < prices.length; i++) {
+                identical &= Double.doubleToRawLongBits(prices[i])
+                        == Double.doubleToRawLongBits(car.calculatePrice(orders.get(i)));
+            }
+        }
+        System.out.println("batch prices identical:" + identical);
     }
 }
 
@@ -70,12 +137,32 @@ interface BMWCarCustomisation {
     int getTireSize();
     String getLaserSignature();
     // a lot of customisation attributes can be in there for a BMW car
-    void printCustomisation();
+    default void printCustomisation(ReportSink sink) {
+        sink.println(sink.line().append("Tire Size:").append(getTireSize()));
+        sink.println(sink.line().append("LaserSignature:").append(getLaserSignature()));
+        sink.println(sink.line().append("LaserSignature Size:").append(getLaserSignature().length()));
+    }
+
+    default void printCustomisation() {
+        printCustomisation(ReportSink.STDOUT);
+    }
 }
 
 interface BMWCar {
     double calculatePrice(BMWCarCustomisation custom);
-    void printFullCharacteristics(BMWCarCustomisation custom);
+    void printFullCharacteristics(BMWCarCustomisation custom, ReportSink sink);
+
+    default void printFullCharacteristics(BMWCarCustomisation custom) {
+        printFullCharacteristics(custom, ReportSink.STDOUT);
+    }
+}
+
+// Cars whose price depends only on what a CustomisationBatch holds, and can
+// so be priced a whole batch at a time.
+
+interface BatchPricedBMWCar extends BMWCar {
+    // prices[i] = calculatePrice(i-th customisation of the batch), for i in [from, to)
+    void calculatePrices(CustomisationBatch batch, double[] prices, int from, int to);
 }
 
 interface BMWCarFactory {
@@ -87,28 +174,55 @@ interface BMWCarFlyWeightFactory {
     BMWCar getBMWModel(Model m);
 }
 
-class BMWSerie1 implements BMWCar {
+class BMWSerie1 implements BatchPricedBMWCar {
     private final static double BASE_PRICE = 25000;
+    private final static double TIRE_19_PRICE = 1200;
+    private final static double OTHER_TIRE_PRICE = 2100;
+    private final static double SIGNATURE_TAXE = 987;
+
+    // stateless, so any two instances are interchangeable flyweights
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BMWSerie1;
+    }
+
+    @Override
+    public int hashCode() {
+        return BMWSerie1.class.hashCode();
+    }
 
     @Override
     public double calculatePrice(BMWCarCustomisation custom) {
         return BASE_PRICE + getSpecificSerie1PriceBasedOnCustom(custom) + getExportationTaxe(custom);
     }
 
+    // same sums in the same order as calculatePrice, so the prices are
+    // bit-identical, with the branches reduced to selects
+    @Override
+    public void calculatePrices(CustomisationBatch batch, double[] prices, int from, int to) {
+        int[] tireSizes = batch.tireSizes();
+        int[] signatureLengths = batch.signatureLengths();
+        for (int i = from; i < to; i++) {
+            double specific = tireSizes[i] == 19 ? TIRE_19_PRICE : OTHER_TIRE_PRICE;
+            double taxe = signatureLengths[i] != 0 ? SIGNATURE_TAXE : 0;
+            prices[i] = BASE_PRICE + specific + taxe;
+        }
+    }
+
     @Override
-    public void printFullCharacteristics(BMWCarCustomisation custom) {
+    public void printFullCharacteristics(BMWCarCustomisation custom, ReportSink sink) {
         // print all BMW 1 series specific characteristics
         // (codes in there)
-        custom.printCustomisation(); // print details based on these customisations
+        custom.printCustomisation(sink); // print details based on these customisations
     }
 
     private double getSpecificSerie1PriceBasedOnCustom(BMWCarCustomisation custom) {
         // (e.g., calculation based on custom specific to Series 1)
         double sum = 0;
         if (custom.getTireSize() == 19) {
-            sum += 1200;
+            sum += TIRE_19_PRICE;
         } else {
-            sum += 2100;
+            sum += OTHER_TIRE_PRICE;
         }
         return sum;
     }
@@ -117,14 +231,28 @@ class BMWSerie1 implements BMWCar {
         // calculation based on custom exporation taxes only for this model)
         double sum = 0;
         if (!custom.getLaserSignature().isEmpty()) {
-            sum += 987;
+            sum += SIGNATURE_TAXE;
         }
         return sum;
     }
 }
 
-class BMWSerie2 implements BMWCar {
+class BMWSerie2 implements BatchPricedBMWCar {
     private final static double BASE_PRICE = 28000;
+    private final static double TIRE_19_PRICE = 2000;
+    private final static double OTHER_TIRE_PRICE = 3000;
+    private final static double LONG_SIGNATURE_PRICE = 1200;
+    private final static double SHORT_SIGNATURE_PRICE = 400;
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BMWSerie2;
+    }
+
+    @Override
+    public int hashCode() {
+        return BMWSerie2.class.hashCode();
+    }
 
     @Override
     public double calculatePrice(BMWCarCustomisation custom) {
@@ -132,25 +260,37 @@ class BMWSerie2 implements BMWCar {
     }
 
     @Override
-    public void printFullCharacteristics(BMWCarCustomisation custom) {
+    public void calculatePrices(CustomisationBatch batch, double[] prices, int from, int to) {
+        int[] tireSizes = batch.tireSizes();
+        int[] signatureLengths = batch.signatureLengths();
+        for (int i = from; i < to; i++) {
+            int length = signatureLengths[i];
+            double sum = tireSizes[i] == 19 ? TIRE_19_PRICE : OTHER_TIRE_PRICE;
+            sum += length == 0 ? 0 : length > 10 ? LONG_SIGNATURE_PRICE : SHORT_SIGNATURE_PRICE;
+            prices[i] = BASE_PRICE + sum;
+        }
+    }
+
+    @Override
+    public void printFullCharacteristics(BMWCarCustomisation custom, ReportSink sink) {
         // print all BMW 2 series specific characteristics
         // (codes in there)
-        custom.printCustomisation(); // print details based on these customisations
+        custom.printCustomisation(sink); // print details based on these customisations
     }
 
     private double getSpecificSerie1PriceBasedOnCustom(BMWCarCustomisation custom) {
         // (e.g., calculation based on custom specific to Series 2)
         double sum = 0;
         if (custom.getTireSize() == 19) {
-            sum += 2000;
+            sum += TIRE_19_PRICE;
         } else {
-            sum += 3000;
+            sum += OTHER_TIRE_PRICE;
         }
         if (!custom.getLaserSignature().isEmpty()) {
             if (custom.getLaserSignature().length() > 10) {
-                sum += 1200;
+                sum += LONG_SIGNATURE_PRICE;
             } else {
-                sum += 400;
+                sum += SHORT_SIGNATURE_PRICE;
             }
         }
         return sum;
@@ -171,33 +311,51 @@ class BMWSerie1Factory implements BMWCarFactory {
     }
 }
 
+// The flyweights are held in an array indexed by Model.ordinal(), so once a
+// model has been created, fetching it is a single acquiring array load: no
+// lock, no hashing. The first requests for a model race to create it and
+// agree on one instance with a compare-and-set; losers drop their copy.
+
 class BMWSerieFlyWeightFactory implements BMWCarFlyWeightFactory {
-    private Map<Model, BMWCar> cache = new HashMap<>();
-
-    public synchronized BMWCar getBMWModel(Model m) {
-        if (!cache.containsKey(m)) {
-            BMWCarFactory concreteFactory;
-            switch(m) {
-                case Serie2:
-                    concreteFactory = new BMWSerie2Factory();
-                    break;
-//                case Serie3:
-//                    concreteFactory = new BMWSerie3Factory();
-//                    break;
-                    // just code to have a hint!
-                default:
-                    concreteFactory = new BMWSerie1Factory();
-                    break;
-            }
-            cache.put(m, concreteFactory.createCar());
+    private static final VarHandle CARS = MethodHandles.arrayElementVarHandle(BMWCar[].class);
+
+    private final BMWCar[] cache = new BMWCar[Model.values().length];
+
+    public BMWCar getBMWModel(Model m) {
+        final BMWCar car = (BMWCar) CARS.getAcquire(cache, m.ordinal());
+        if (car != null) {
+            return car;
         }
-        return cache.get(m);
+        return createBMWModel(m);
+    }
+
+    private BMWCar createBMWModel(Model m) {
+        BMWCarFactory concreteFactory;
+        switch(m) {
+            case Serie2:
+                concreteFactory = new BMWSerie2Factory();
+                break;
+//            case Serie3:
+//                concreteFactory = new BMWSerie3Factory();
+//                break;
+                // just code to have a hint!
+            default:
+                concreteFactory = new BMWSerie1Factory();
+                break;
+        }
+        final BMWCar created = concreteFactory.createCar();
+        final BMWCar winner = (BMWCar) CARS.compareAndExchange(cache, m.ordinal(), null, created);
+        return winner == null ? created : winner;
     }
 }
 
 class BMWSerieCarCustomisation implements BMWCarCustomisation {
-    private int tireSize;
-    private String laserSignature;
+    // header, tireSize and laserSignature reference with compressed oops,
+    // not counting the signature string itself
+    static final long SHALLOW_SIZE = 24;
+
+    private final int tireSize;
+    private final String laserSignature;
 
     public BMWSerieCarCustomisation(int tireSize, String laserSignature) {
         this.tireSize = tireSize;
@@ -213,9 +371,645 @@ class BMWSerieCarCustomisation implements BMWCarCustomisation {
     }
 
     @Override
-    public void printCustomisation() {
-        System.out.println("Tire Size:" + getTireSize());
-        System.out.println("LaserSignature:" + getLaserSignature());
-        System.out.println("LaserSignature Size:" + getLaserSignature().length());
+    public boolean equals(Object o) {
+        if (!(o instanceof BMWSerieCarCustomisation)) {
+            return false;
+        }
+        BMWSerieCarCustomisation other = (BMWSerieCarCustomisation) o;
+        return tireSize == other.tireSize && laserSignature.equals(other.laserSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * tireSize + laserSignature.hashCode();
+    }
+}
+
+// Where report lines go. A line is formatted into the builder returned by
+// line(), which is reused, then handed back through println.
+
+interface ReportSink {
+    // prints to whatever System.out is when the line is printed
+    ReportSink STDOUT = new PrintStreamReportSink(null);
+
+    StringBuilder line();
+
+    void println(StringBuilder line);
+}
+
+// Prints each line synchronously, formatting into one builder per thread. A
+// null stream stands for System.out, looked up at every line.
+
+class PrintStreamReportSink implements ReportSink {
+    private final PrintStream out;
+    private final ThreadLocal<StringBuilder> lines = ThreadLocal.withInitial(StringBuilder::new);
+
+    public PrintStreamReportSink(PrintStream out) {
+        this.out = out;
+    }
+
+    public StringBuilder line() {
+        StringBuilder line = lines.get();
+        line.setLength(0);
+        return line;
+    }
+
+    public void println(StringBuilder line) {
+        (out == null ? System.out : out).println(line);
+    }
+}
+
+// Moves the writing off the calling threads: lines are formatted into pooled
+// builders, queued, and written by one background thread that flushes
+// whenever it runs out of lines. The pool bounds the number of lines in
+// flight; once it is exhausted, callers wait for the writer to recycle a
+// builder instead of buffering without limit. Both the pool and the queue of
+// pending lines are lock-free. Closing the sink, or shutting down the JVM,
+// writes out every pending line before returning. If writing fails, the
+// writer stops, the pending lines are dropped and every later call throws
+// the failure, rather than leaving callers waiting for builders that will
+// never come back.
+
+class AsyncReportSink implements ReportSink, AutoCloseable {
+    private static final long WAIT_NANOS = 50_000;
+    // builders grown beyond this are not kept in the pool
+    private static final int MAX_POOLED_LINE = 4096;
+
+    private final Queue<StringBuilder> free = new ConcurrentLinkedQueue<>();
+    private final Queue<StringBuilder> pending = new ConcurrentLinkedQueue<>();
+    private final Writer out;
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private volatile boolean closed;
+    private volatile Exception failure;
+    private volatile boolean writerParked;
+    // println calls that found the sink open and may not have queued yet
+    private final AtomicInteger queueing = new AtomicInteger();
+    private char[] chars = new char[256];
+
+    public AsyncReportSink(OutputStream out, int capacity) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new StringBuilder(64));
+        }
+        writer = new Thread(this::drain, "report-writer");
+        writer.setDaemon(true);
+        writer.start();
+        shutdownHook = new Thread(this::close, "report-writer-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public StringBuilder line() {
+        while (true) {
+            checkOpen();
+            StringBuilder line = free.poll();
+            if (line != null) {
+                return line;
+            }
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    public void println(StringBuilder line) {
+        queueing.incrementAndGet();
+        try {
+            checkOpen();
+            pending.add(line);
+        } finally {
+            queueing.decrementAndGet();
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+        if (failure != null && Thread.currentThread() != shutdownHook) {
+            checkOpen();
+        }
+    }
+
+    private void checkOpen() {
+        Exception failure = this.failure;
+        if (failure instanceof IOException) {
+            throw new UncheckedIOException("Report writer failed", (IOException) failure);
+        } else if (failure != null) {
+            throw new IllegalStateException("Report writer failed", failure);
+        } else if (closed) {
+            throw new IllegalStateException("Report sink is closed");
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                StringBuilder line = pending.poll();
+                if (line != null) {
+                    write(line);
+                    continue;
+                }
+                out.flush();
+                if (closed) {
+                    // a line is queued before its println stops counting, so
+                    // once none is counted after closing, none can follow
+                    if (queueing.get() == 0 && pending.isEmpty()) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, WAIT_NANOS);
+                    continue;
+                }
+                writerParked = true;
+                // a line queued before the flag was seen would otherwise wait
+                if (pending.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            pending.clear();
+        }
+    }
+
+    private void write(StringBuilder line) throws IOException {
+        int length = line.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        out.write('\n');
+        line.setLength(0);
+        free.add(line.capacity() > MAX_POOLED_LINE ? new StringBuilder(64) : line);
+    }
+}
+
+// Caching decorator: calculatePrice is a pure function of the model and the
+// customisation, so prices of repeated configurations are remembered. The key
+// packs the tire size and a dense id of the laser signature into one long,
+// looked up in a direct-mapped table of immutable entries: lock-free, bounded
+// by construction, a colliding configuration simply replacing (evicting) the
+// previous one in its slot. Once maxSignatures distinct signatures have been
+// seen, further ones cannot be packed into a key and are priced directly.
+
+class CachingBMWCar implements BMWCar {
+    private final BMWCar car;
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final int maxSignatures;
+    private final ConcurrentHashMap<String, Integer> signatureIds = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingBMWCar(BMWCar car, int capacity, int maxSignatures) {
+        this.car = car;
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxSignatures = maxSignatures;
+    }
+
+    @Override
+    public double calculatePrice(BMWCarCustomisation custom) {
+        int signature = signatureId(custom.getLaserSignature());
+        if (signature < 0) {
+            misses.increment();
+            return car.calculatePrice(custom);
+        }
+        long key = ((long) custom.getTireSize() << 32) | signature;
+        int index = slot(key);
+        Entry entry = table.get(index);
+        if (entry != null && entry.key == key) {
+            hits.increment();
+            return entry.price;
+        }
+        misses.increment();
+        double price = car.calculatePrice(custom);
+        Entry previous = table.getAndSet(index, new Entry(key, price));
+        if (previous != null && previous.key != key) {
+            evictions.increment();
+        }
+        return price;
+    }
+
+    @Override
+    public void printFullCharacteristics(BMWCarCustomisation custom, ReportSink sink) {
+        car.printFullCharacteristics(custom, sink);
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    // -1 once no more ids are available
+    private int signatureId(String laserSignature) {
+        Integer id = signatureIds.get(laserSignature);
+        if (id != null) {
+            return id;
+        }
+        if (signatureIds.size() >= maxSignatures) {
+            return -1;
+        }
+        synchronized (signatureIds) {
+            // another thread may have added this one, or the last free id
+            id = signatureIds.get(laserSignature);
+            if (id == null) {
+                if (signatureIds.size() >= maxSignatures) {
+                    return -1;
+                }
+                id = signatureIds.size();
+                signatureIds.put(laserSignature, id);
+            }
+            return id;
+        }
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private static class Entry {
+        final long key;
+        final double price;
+
+        Entry(long key, double price) {
+            this.key = key;
+            this.price = price;
+        }
+    }
+}
+
+// A batch of orders' customisations stored as a struct of arrays: only the
+// attributes pricing depends on, one primitive column each, so a whole batch
+// is priced by a loop over plain arrays instead of one interface call and a
+// few getter calls per order.
+
+class CustomisationBatch {
+    private int[] tireSizes;
+    private int[] signatureLengths;
+    private int size;
+
+    public CustomisationBatch(int capacity) {
+        tireSizes = new int[capacity];
+        signatureLengths = new int[capacity];
+    }
+
+    public void add(int tireSize, int signatureLength) {
+        if (size == tireSizes.length) {
+            int capacity = Math.max(16, size * 2);
+            tireSizes = Arrays.copyOf(tireSizes, capacity);
+            signatureLengths = Arrays.copyOf(signatureLengths, capacity);
+        }
+        tireSizes[size] = tireSize;
+        signatureLengths[size] = signatureLength;
+        size++;
+    }
+
+    public void add(BMWCarCustomisation custom) {
+        add(custom.getTireSize(), custom.getLaserSignature().length());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    int[] tireSizes() {
+        return tireSizes;
+    }
+
+    int[] signatureLengths() {
+        return signatureLengths;
+    }
+}
+
+// Prices a large batch on a ForkJoinPool, each worker running the car's batch
+// loop over its own slice of the arrays.
+
+class BatchPricingTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    // enough orders per task to amortize forking
+    private static final int SLICE = 1 << 14;
+
+    private final BatchPricedBMWCar car;
+    private final CustomisationBatch batch;
+    private final double[] prices;
+    private final int from;
+    private final int to;
+
+    private BatchPricingTask(BatchPricedBMWCar car, CustomisationBatch batch, double[] prices, int from, int to) {
+        this.car = car;
+        this.batch = batch;
+        this.prices = prices;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static double[] calculatePrices(BatchPricedBMWCar car, CustomisationBatch batch, ForkJoinPool pool) {
+        double[] prices = new double[batch.size()];
+        pool.invoke(new BatchPricingTask(car, batch, prices, 0, batch.size()));
+        return prices;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= SLICE) {
+            car.calculatePrices(batch, prices, from, to);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        invokeAll(new BatchPricingTask(car, batch, prices, from, middle),
+                new BatchPricingTask(car, batch, prices, middle, to));
+    }
+}
+
+// Extrinsic state kept out of the heap: each customisation is an 8 byte
+// record (tire size, laser signature id) in direct or memory-mapped buffers,
+// and each distinct laser signature is stored once in a dictionary. Records
+// are read through cursors, lightweight BMWCarCustomisation views that can be
+// moved from record to record, so millions of customisations cost no object
+// headers and nothing for the garbage collector to trace. A ByteBuffer holds
+// at most 2 GB, so records are spread over segments of 128 MB, each starting
+// at 32 KB and doubling as it fills. Appending is meant for a single writer
+// thread. Every record is published through the volatile size, and segments
+// and the dictionary are replaced rather than resized in place, so cursors
+// in other threads see every record added before they moved to it.
+
+class CustomisationStore implements AutoCloseable {
+    private static final int RECORD_SIZE = 8;
+    private static final int SEGMENT_SHIFT = 24;    // records per segment: 16M, i.e. 128 MB
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_SIZE;
+    private static final int FIRST_SEGMENT_BYTES = 32 * 1024;
+
+    private final FileChannel file;
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private final Map<String, Integer> signatureIds = new HashMap<>();
+    private volatile String[] signatures = new String[16];
+    private volatile int signatureCount;
+    private volatile long size;
+
+    // kept in direct buffers outside the heap
+    public CustomisationStore() {
+        this.file = null;
+    }
+
+    // kept in a file mapped into memory, so the OS pages records in and out
+    public CustomisationStore(Path path) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // returns the index of the new record
+    public long add(int tireSize, String laserSignature) {
+        long index = size;
+        int segment = (int) (index >>> SEGMENT_SHIFT);
+        int offset = (int) (index & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+        ByteBuffer[] current = segments;
+        if (segment == current.length) {
+            current = Arrays.copyOf(current, segment + 1);
+            current[segment] = allocate(segment, FIRST_SEGMENT_BYTES, null);
+            segments = current;
+        } else if (offset == current[segment].capacity()) {
+            current = current.clone();
+            current[segment] = allocate(segment, offset * 2, current[segment]);
+            segments = current;
+        }
+        current[segment].putInt(offset, tireSize);
+        current[segment].putInt(offset + 4, signatureId(laserSignature));
+        size = index + 1;
+        return index;
+    }
+
+    public long add(BMWCarCustomisation custom) {
+        return add(custom.getTireSize(), custom.getLaserSignature());
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int distinctSignatures() {
+        return signatureCount;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    // a segment of the given size, holding the records of previous if any
+    private ByteBuffer allocate(int segment, int bytes, ByteBuffer previous) {
+        if (file != null) {
+            // a larger mapping of the same region, which already holds them
+            try {
+                return file.map(FileChannel.MapMode.READ_WRITE, segment * SEGMENT_BYTES, bytes)
+                        .order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ByteBuffer records = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        if (previous != null) {
+            records.put(0, previous, 0, previous.capacity());
+        }
+        return records;
+    }
+
+    private int signatureId(String laserSignature) {
+        Integer id = signatureIds.get(laserSignature);
+        if (id == null) {
+            id = signatureCount;
+            String[] names = signatures;
+            if (id == names.length) {
+                names = Arrays.copyOf(names, id * 2);
+            }
+            names[id] = laserSignature;
+            signatures = names;
+            signatureCount = id + 1;
+            signatureIds.put(laserSignature, id);
+        }
+        return id;
+    }
+
+    // A view of one record at a time; not to be shared between threads.
+    class Cursor implements BMWCarCustomisation {
+        private ByteBuffer records;
+        private int offset;
+
+        public Cursor moveTo(long index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+            }
+            records = segments[(int) (index >>> SEGMENT_SHIFT)];
+            offset = (int) (index & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+            return this;
+        }
+
+        public int getTireSize() {
+            return records.getInt(offset);
+        }
+
+        public String getLaserSignature() {
+            return signatures[records.getInt(offset + 4)];
+        }
+    }
+}
+
+// A pool handing out one canonical instance per equal value, the flyweight
+// idea applied to any immutable type with equals and hashCode: interning a
+// value returns the instance first interned among those equal to it, so the
+// duplicate can be dropped. Counts how often that happened and, given the
+// footprint of one instance, the bytes this saves.
+
+interface FlyweightPool<T> {
+    T intern(T value);
+
+    int size();
+
+    long hitCount();
+
+    long missCount();
+
+    long bytesSaved();
+
+    default double hitRate() {
+        long hits = hitCount();
+        long total = hits + missCount();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+}
+
+abstract class AbstractFlyweightPool<T> implements FlyweightPool<T> {
+    private final ToLongFunction<? super T> footprint;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder saved = new LongAdder();
+
+    protected AbstractFlyweightPool(ToLongFunction<? super T> footprint) {
+        this.footprint = footprint;
+    }
+
+    protected T hit(T canonical, T duplicate) {
+        hits.increment();
+        saved.add(footprint.applyAsLong(duplicate));
+        return canonical;
+    }
+
+    protected T miss(T value) {
+        misses.increment();
+        return value;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long bytesSaved() {
+        return saved.sum();
+    }
+}
+
+// Keeps every canonical instance for the lifetime of the pool; lookups of
+// already interned values take no lock.
+
+class StrongFlyweightPool<T> extends AbstractFlyweightPool<T> {
+    private final ConcurrentHashMap<T, T> pool = new ConcurrentHashMap<>();
+
+    public StrongFlyweightPool(ToLongFunction<? super T> footprint) {
+        super(footprint);
+    }
+
+    public T intern(T value) {
+        T canonical = pool.get(value);
+        if (canonical == null) {
+            canonical = pool.putIfAbsent(value, value);
+            if (canonical == null) {
+                return miss(value);
+            }
+        }
+        return hit(canonical, value);
+    }
+
+    public int size() {
+        return pool.size();
+    }
+}
+
+// Holds canonical instances weakly, so flyweights no order refers to any more
+// are collected. WeakHashMap is not thread-safe, so values are spread over
+// independently locked stripes by hash.
+
+class WeakFlyweightPool<T> extends AbstractFlyweightPool<T> {
+    private static final int STRIPES = 16;
+
+    private final List<Map<T, WeakReference<T>>> stripes = new ArrayList<>(STRIPES);
+
+    public WeakFlyweightPool(ToLongFunction<? super T> footprint) {
+        super(footprint);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new WeakHashMap<>());
+        }
+    }
+
+    public T intern(T value) {
+        int hash = value.hashCode();
+        Map<T, WeakReference<T>> stripe = stripes.get((hash ^ (hash >>> 16)) & (STRIPES - 1));
+        synchronized (stripe) {
+            WeakReference<T> reference = stripe.get(value);
+            T canonical = reference == null ? null : reference.get();
+            if (canonical != null) {
+                return hit(canonical, value);
+            }
+            stripe.put(value, new WeakReference<>(value));
+        }
+        return miss(value);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<T, WeakReference<T>> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
     }
 }
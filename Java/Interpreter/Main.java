@@ -6,23 +6,60 @@
 // to evaluate (interpret) the sentence for a client. See also
 // Composite pattern.
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
 
 
 interface Expression {
     public int interpret(final Map<String, Expression> variables);
+    // values[i] holds the value of the variable bound to slot i
+    public int interpret(final int[] values);
+    public long interpret(final long[] values);
 }
 
 class Number implements Expression {
-    private int number;
+    int number;
     public Number(final int number) {
         this.number = number;
     }
     public int interpret(final Map<String, Expression> variables) {
         return number;
     }
+    public int interpret(final int[] values) {
+        return number;
+    }
+    public long interpret(final long[] values) {
+        return number;
+    }
 }
 
 class Plus implements Expression {
@@ -36,6 +73,14 @@ class Plus implements Expression {
     public int interpret(final Map<String, Expression> variables) {
         return leftOperand.interpret(variables) + rightOperand.interpret(variables);
     }
+
+    public int interpret(final int[] values) {
+        return leftOperand.interpret(values) + rightOperand.interpret(values);
+    }
+
+    public long interpret(final long[] values) {
+        return leftOperand.interpret(values) + rightOperand.interpret(values);
+    }
 }
 
 class Minus implements Expression {
@@ -49,16 +94,40 @@ class Minus implements Expression {
     public int interpret(final Map<String, Expression> variables) {
         return leftOperand.interpret(variables) - rightOperand.interpret(variables);
     }
+
+    public int interpret(final int[] values) {
+        return leftOperand.interpret(values) - rightOperand.interpret(values);
+    }
+
+    public long interpret(final long[] values) {
+        return leftOperand.interpret(values) - rightOperand.interpret(values);
+    }
 }
 
 class Variable implements Expression {
-    private String name;
+    String name;
+    // resolved once by the parser; -1 when shared between formulas, which
+    // then resolve the name against their own slots
+    int slot;
     public Variable(final String name) {
+        this(name, -1);
+    }
+    public Variable(final String name, final int slot) {
         this.name = name;
+        this.slot = slot;
     }
     public int interpret(final Map<String, Expression> variables) {
-        if (null == variables.get(name)) return 0; // Either return new Number(0).
-        return variables.get(name).interpret(variables);
+        final Expression value = variables.get(name);
+        if (null == value) return 0; // Either return new Number(0).
+        return value.interpret(variables);
+    }
+    public int interpret(final int[] values) {
+        if (slot < 0) return 0;
+        return values[slot];
+    }
+    public long interpret(final long[] values) {
+        if (slot < 0) return 0;
+        return values[slot];
     }
 }
 
@@ -67,30 +136,1484 @@ class Variable implements Expression {
 
 class Evaluator implements Expression {
     private Expression syntaxTree;
+    // every variable name gets a dense slot, in order of first appearance
+    private final Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+    // built on first batch evaluation; racing threads just build it twice
+    private ColumnEvaluator columnEvaluator;
+    // whether variables may be shared nodes without a slot of their own
+    private final boolean shared;
 
-    public Evaluator(final String expression) {
-        final Stack<Expression> expressionStack = new Stack<Expression>();
-        for (final String token : expression.split(" ")) {
-            if (token.equals("+")) {
-                final Expression subExpression = new Plus(expressionStack.pop(), expressionStack.pop());
-                expressionStack.push(subExpression);
-            } else if (token.equals("-")) {
-                // it's necessary to remove first the right operand from the stack
+    public Evaluator(final CharSequence expression) {
+        this(expression, ExpressionFactory.PLAIN);
+    }
+
+    // the expression as US-ASCII bytes, read from position to limit without
+    // being copied
+    public Evaluator(final ByteBuffer expression) {
+        this(new AsciiSequence(expression), ExpressionFactory.PLAIN);
+    }
+
+    // with an ExpressionInterner, identical subtrees of every expression it
+    // parsed are a single shared object
+    public Evaluator(final CharSequence expression, final ExpressionFactory factory) {
+        syntaxTree = ExpressionOptimizer.optimize(PostfixParser.parse(expression, slots, factory), factory);
+        shared = factory != ExpressionFactory.PLAIN;
+    }
+
+    public int interpret(final Map<String, Expression> context) {
+        return syntaxTree.interpret(context);
+    }
+
+    Expression syntaxTree() {
+        return syntaxTree;
+    }
+
+    // Evaluates against values laid out by slotOf: no string hashing, boxing
+    // or map access on the way.
+    public int interpret(final int[] values) {
+        return shared ? interpret(syntaxTree, values) : syntaxTree.interpret(values);
+    }
+
+    public long interpret(final long[] values) {
+        return shared ? interpret(syntaxTree, values) : syntaxTree.interpret(values);
+    }
+
+    // the walk for shared trees, looking the slot of each variable up in
+    // this formula's own layout
+    private int interpret(final Expression node, final int[] values) {
+        if (node instanceof Plus) {
+            return interpret(((Plus) node).leftOperand, values) + interpret(((Plus) node).rightOperand, values);
+        }
+        if (node instanceof Minus) {
+            return interpret(((Minus) node).leftOperand, values) - interpret(((Minus) node).rightOperand, values);
+        }
+        if (node instanceof Variable) {
+            final int slot = slotOf((Variable) node);
+            return slot < 0 ? 0 : values[slot];
+        }
+        return node.interpret(values);
+    }
+
+    private long interpret(final Expression node, final long[] values) {
+        if (node instanceof Plus) {
+            return interpret(((Plus) node).leftOperand, values) + interpret(((Plus) node).rightOperand, values);
+        }
+        if (node instanceof Minus) {
+            return interpret(((Minus) node).leftOperand, values) - interpret(((Minus) node).rightOperand, values);
+        }
+        if (node instanceof Variable) {
+            final int slot = slotOf((Variable) node);
+            return slot < 0 ? 0 : values[slot];
+        }
+        return node.interpret(values);
+    }
+
+    // the variable names in slot order, i.e. the layout expected by
+    // interpret(int[]), interpret(long[]) and CompiledExpression.eval
+    public String[] slotNames() {
+        return slots.keySet().toArray(new String[0]);
+    }
+
+    public int slotOf(final String name) {
+        final Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    private int slotOf(final Variable variable) {
+        return variable.slot >= 0 ? variable.slot : slotOf(variable.name);
+    }
+
+    // Turns the syntax tree into a single generated method, so evaluation
+    // no longer walks the nodes one virtual call at a time.
+    public CompiledExpression compile() {
+        return ExpressionCompiler.compile(syntaxTree, this::slotOf, this);
+    }
+
+    // Columnar evaluation: columns[slot][row] holds the value of a variable in
+    // a row, and out[row] receives the result for every row of out.
+    public void interpret(final int[][] columns, final int[] out) {
+        ColumnEvaluator evaluator = columnEvaluator;
+        if (evaluator == null) {
+            evaluator = new ColumnEvaluator(syntaxTree, this::slotOf);
+            columnEvaluator = evaluator;
+        }
+        evaluator.evaluate(columns, out);
+    }
+}
+
+// A syntax tree compiled against a slot layout: slots[i] holds the value of
+// the i-th variable of the Evaluator it came from.
+
+interface CompiledExpression {
+    public int eval(final int[] slots);
+}
+
+// Used for trees containing nodes the compiler does not know about: the tree
+// is still walked, but over the slot values.
+
+class InterpretedExpression implements CompiledExpression {
+    private final Expression syntaxTree;
+
+    public InterpretedExpression(final Expression syntaxTree) {
+        this.syntaxTree = syntaxTree;
+    }
+
+    public int eval(final int[] slots) {
+        return syntaxTree.interpret(slots);
+    }
+}
+
+// Emits a hidden class implementing CompiledExpression whose eval method is
+// the straight-line postfix form of the tree:
+//
+//      w x z - +   =>   aload_1 iconst_0 iaload  aload_1 iconst_1 iaload
+//                       aload_1 iconst_2 iaload  isub  iadd  ireturn
+//
+// The JIT sees one small method per formula instead of a megamorphic
+// Expression.interpret call site per node.
+
+class ExpressionCompiler {
+    // class file limits for a single method
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_STACK = 65535;
+
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int IALOAD = 0x2e;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IRETURN = 0xac;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int depth;
+    private int maxDepth;
+
+    private final ToIntFunction<Variable> slots;
+
+    private ExpressionCompiler(final ToIntFunction<Variable> slots) {
+        this.slots = slots;
+    }
+
+    // slots gives the slot each variable is read from; fallback is walked
+    // instead when the tree cannot be compiled
+    public static CompiledExpression compile(final Expression syntaxTree, final ToIntFunction<Variable> slots,
+                                             final Expression fallback) {
+        final ExpressionCompiler compiler = new ExpressionCompiler(slots);
+        if (!compiler.emit(syntaxTree)) {
+            return new InterpretedExpression(fallback);
+        }
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(compiler.toClassFile(), true);
+            final MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class));
+            return (CompiledExpression) constructor.invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot define compiled expression", e);
+        }
+    }
+
+    // Post-order walk with an explicit stack, so that deep generated formulas
+    // do not overflow the compiler's own stack. Returns false when the tree
+    // holds a node that has no bytecode translation.
+    private boolean emit(final Expression root) {
+        final Deque<Object> work = new ArrayDeque<Object>();
+        work.push(root);
+        while (!work.isEmpty()) {
+            final Object item = work.pop();
+            if (item instanceof Integer) {
+                emitOperation((Integer) item);
+            } else if (item instanceof Plus) {
+                final Plus plus = (Plus) item;
+                work.push(IADD);
+                work.push(plus.rightOperand);
+                work.push(plus.leftOperand);
+            } else if (item instanceof Minus) {
+                final Minus minus = (Minus) item;
+                work.push(ISUB);
+                work.push(minus.rightOperand);
+                work.push(minus.leftOperand);
+            } else if (item instanceof Number) {
+                emitConstant(((Number) item).number);
+            } else if (item instanceof Variable && slots.applyAsInt((Variable) item) >= 0) {
+                code.write(ALOAD_1);
+                push(1);
+                emitConstant(slots.applyAsInt((Variable) item));
+                code.write(IALOAD);
+                pop(1);
+            } else {
+                return false;
+            }
+            if (code.size() >= MAX_CODE_LENGTH || maxDepth > MAX_STACK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void emitOperation(final int opcode) {
+        code.write(opcode);
+        pop(1);
+    }
+
+    private void emitConstant(final int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            code.write(value >> 8);
+            code.write(value);
+        } else {
+            final int index = pool.integer(value);
+            code.write(LDC_W);
+            code.write(index >> 8);
+            code.write(index);
+        }
+        push(1);
+    }
+
+    private void push(final int count) {
+        depth += count;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void pop(final int count) {
+        depth -= count;
+    }
+
+    private byte[] toClassFile() throws IOException {
+        final String name = "CompiledExpression$Generated";
+        final int thisClass = pool.classRef(name);
+        final int superClass = pool.classRef("java/lang/Object");
+        final int iface = pool.classRef("CompiledExpression");
+        final int objectInit = pool.methodRef(superClass, "<init>", "()V");
+        final int initName = pool.utf8("<init>");
+        final int initType = pool.utf8("()V");
+        final int evalName = pool.utf8("eval");
+        final int evalType = pool.utf8("([I)I");
+        final int codeName = pool.utf8("Code");
+
+        code.write(IRETURN);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        pool.writeTo(out);
+        out.writeShort(0x0030);     // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(iface);
+        out.writeShort(0);          // fields
+        out.writeShort(2);          // methods
+
+        // public <init>() { super(); }
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initType);
+        out.writeShort(1);
+        writeCode(out, codeName, 1, 1, new byte[] {0x2a, (byte) 0xb7,
+                (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1});
+
+        // public final int eval(int[] slots)
+        out.writeShort(0x0011);
+        out.writeShort(evalName);
+        out.writeShort(evalType);
+        out.writeShort(1);
+        writeCode(out, codeName, Math.max(maxDepth, 1), 2, code.toByteArray());
+
+        out.writeShort(0);          // class attributes
+        return bytes.toByteArray();
+    }
+
+    private static void writeCode(final DataOutputStream out, final int codeName,
+                                  final int maxStack, final int maxLocals, final byte[] code) throws IOException {
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);          // exception table
+        out.writeShort(0);          // attributes
+    }
+
+    // Just the constant pool entries the generated class needs, deduplicated.
+
+    private static class ConstantPool {
+        private final Map<String, Integer> indices = new HashMap<String, Integer>();
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(entries);
+        private int count = 1;
+
+        int utf8(final String value) {
+            return entry("U" + value, 1, value, 0, 0);
+        }
+
+        int integer(final int value) {
+            return entry("I" + value, 3, null, value, 0);
+        }
 
-                final Expression right = expressionStack.pop();
+        int classRef(final String name) {
+            return entry("C" + name, 7, null, utf8(name), -1);
+        }
+
+        int methodRef(final int owner, final String name, final String type) {
+            final int nameAndType = entry("N" + name + type, 12, null, utf8(name), utf8(type));
+            return entry("M" + owner + "." + nameAndType, 10, null, owner, nameAndType);
+        }
+
+        // first/second are u2 operands; a second of -1 means a single operand
+        private int entry(final String key, final int tag, final String text, final int first, final int second) {
+            final Integer existing = indices.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                out.writeByte(tag);
+                if (text != null) {
+                    out.writeUTF(text);
+                } else if (tag == 3) {
+                    out.writeInt(first);
+                } else {
+                    out.writeShort(first);
+                    if (second >= 0) {
+                        out.writeShort(second);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            indices.put(key, count);
+            return count++;
+        }
+
+        void writeTo(final DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            entries.writeTo(target);
+        }
+    }
+}
+
+
+// Thrown for malformed input, with the offset of the offending character.
+
+class ExpressionParseException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final int position;
+
+    public ExpressionParseException(final String message, final int position) {
+        super(message + " at position " + position);
+        this.position = position;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+}
+
+// A hand-written scanner for postfix expressions. Tokens are separated by
+// whitespace and never materialized: operators and integer literals are read
+// in place, and a variable name becomes a String only the first time it
+// appears in the expression, later occurrences being matched against the
+// names already bound. Operands live on a plain array stack.
+
+class PostfixParser {
+    private final CharSequence source;
+    private final Map<String, Integer> slots;
+    private final ExpressionFactory factory;
+    private Expression[] stack = new Expression[16];
+    private int size;
+    // open-addressed by String.hashCode, so names can be looked up by region
+    private Variable[] variables = new Variable[16];
+
+    private PostfixParser(final CharSequence source, final Map<String, Integer> slots,
+                          final ExpressionFactory factory) {
+        this.source = source;
+        this.slots = slots;
+        this.factory = factory;
+    }
+
+    // Parses source, binding new variable names to the next free slots.
+    public static Expression parse(final CharSequence source, final Map<String, Integer> slots,
+                                   final ExpressionFactory factory) {
+        return new PostfixParser(source, slots, factory).parse();
+    }
+
+    private Expression parse() {
+        final int length = source.length();
+        int position = 0;
+        while (position < length) {
+            final char c = source.charAt(position);
+            if (Character.isWhitespace(c)) {
+                position++;
+                continue;
+            }
+            int end = position + 1;
+            while (end < length && !Character.isWhitespace(source.charAt(end))) {
+                end++;
+            }
+            if (end - position == 1 && (c == '+' || c == '-')) {
+                // it's necessary to remove first the right operand from the stack
+                final Expression right = pop(c, position);
                 // ... and then the left one
-                final Expression left = expressionStack.pop();
-                final Expression subExpression = new Minus(left, right);
-                expressionStack.push(subExpression);
+                final Expression left = pop(c, position);
+                push(c == '+' ? factory.plus(right, left) : factory.minus(left, right));
+            } else if (isInteger(position, end)) {
+                push(factory.number(parseInteger(position, end)));
             } else {
-                expressionStack.push(new Variable(token));
+                push(variable(position, end));
             }
+            position = end;
         }
-        syntaxTree = expressionStack.pop();
+        if (size == 0) {
+            throw new ExpressionParseException("Empty expression", length);
+        }
+        if (size > 1) {
+            throw new ExpressionParseException(size + " operands left without an operator", length);
+        }
+        return stack[0];
     }
 
-    public int interpret(final Map<String, Expression> context) {
-        return syntaxTree.interpret(context);
+    private void push(final Expression expression) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size++] = expression;
+    }
+
+    private Expression pop(final char operator, final int position) {
+        if (size == 0) {
+            throw new ExpressionParseException("Missing operand for '" + operator + "'", position);
+        }
+        final Expression top = stack[--size];
+        stack[size] = null;
+        return top;
+    }
+
+    private boolean isInteger(final int start, final int end) {
+        int i = start;
+        if (source.charAt(i) == '-' || source.charAt(i) == '+') {
+            i++;
+        }
+        for (; i < end; i++) {
+            final char c = source.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // accumulates negatively so that Integer.MIN_VALUE is representable
+    private int parseInteger(final int start, final int end) {
+        final boolean negative = source.charAt(start) == '-';
+        int i = start;
+        if (negative || source.charAt(start) == '+') {
+            i++;
+        }
+        final int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        for (; i < end; i++) {
+            final int digit = source.charAt(i) - '0';
+            if (result < limit / 10 || result * 10 < limit + digit) {
+                throw new ExpressionParseException("Integer literal out of range", start);
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private Variable variable(final int start, final int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = variables.length - 1;
+        int index = hash & mask;
+        for (Variable known; (known = variables[index]) != null; index = (index + 1) & mask) {
+            if (known.name.hashCode() == hash && matches(known.name, start, end)) {
+                return known;
+            }
+        }
+        final String name = source.subSequence(start, end).toString();
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+        final Variable variable = factory.variable(name, slot);
+        variables[index] = variable;
+        if (slots.size() * 2 > variables.length) {
+            rehash();
+        }
+        return variable;
+    }
+
+    private boolean matches(final String name, final int start, final int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        final Variable[] old = variables;
+        variables = new Variable[old.length * 2];
+        final int mask = variables.length - 1;
+        for (final Variable variable : old) {
+            if (variable != null) {
+                int index = variable.name.hashCode() & mask;
+                while (variables[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                variables[index] = variable;
+            }
+        }
+    }
+}
+
+// Rewrites a tree of Plus and Minus nodes as the sum of its signed terms, then
+// rebuilds it in a canonical shape:
+//
+//      x 0 +        =>  x
+//      a a -        =>  0
+//      1 a 2 + +    =>  a 3 +
+//      a b + c + d +  =>  a b + c d + +
+//
+// Constants are folded into one, terms cancelling each other are dropped and
+// the remaining ones are summed as balanced trees, so a generated chain of n
+// terms is evaluated at depth log n instead of n. Variables are summed in
+// slot order, then by name, whatever their order in the source, so formulas
+// over the same variables come out in the same shape and an
+// ExpressionInterner can share it. The parser makes one Variable per name, which lets terms be counted by
+// identity without building keys. Integer addition wraps, so
+// any regrouping gives the same result as the original tree. Nodes other
+// than Plus, Minus, Number and Variable are kept as opaque terms. Everything
+// here is iterative, as the input may be a chain thousands of nodes deep.
+
+class ExpressionOptimizer {
+    private static final Comparator<Variable> BY_SLOT = Comparator.<Variable>comparingInt(variable -> variable.slot)
+            .thenComparing(variable -> variable.name);
+
+    private final ExpressionFactory factory;
+    private final Map<Expression, Integer> counts = new IdentityHashMap<Expression, Integer>();
+    private final List<Variable> variables = new ArrayList<Variable>();
+    private final List<Expression> opaque = new ArrayList<Expression>();
+    private final List<Expression> addedConstants = new ArrayList<Expression>();
+    private final List<Expression> subtractedConstants = new ArrayList<Expression>();
+    private long constant;
+
+    private ExpressionOptimizer(final ExpressionFactory factory) {
+        this.factory = factory;
+    }
+
+    public static Expression optimize(final Expression syntaxTree, final ExpressionFactory factory) {
+        final ExpressionOptimizer optimizer = new ExpressionOptimizer(factory);
+        optimizer.collect(syntaxTree);
+        return optimizer.rebuild();
+    }
+
+    private void collect(final Expression root) {
+        Expression[] work = new Expression[16];
+        boolean[] negated = new boolean[16];
+        int size = 0;
+        work[size++] = root;
+        while (size > 0) {
+            final Expression node = work[--size];
+            final boolean negative = negated[size];
+            if (size + 2 > work.length) {
+                work = Arrays.copyOf(work, work.length * 2);
+                negated = Arrays.copyOf(negated, negated.length * 2);
+            }
+            if (node instanceof Plus) {
+                work[size] = ((Plus) node).rightOperand;
+                negated[size++] = negative;
+                work[size] = ((Plus) node).leftOperand;
+                negated[size++] = negative;
+            } else if (node instanceof Minus) {
+                work[size] = ((Minus) node).rightOperand;
+                negated[size++] = !negative;
+                work[size] = ((Minus) node).leftOperand;
+                negated[size++] = negative;
+            } else if (node instanceof Number) {
+                final int value = ((Number) node).number;
+                constant += (negative ? -1 : 1) * (long) value;
+                (negative ? subtractedConstants : addedConstants).add(node);
+            } else {
+                final Integer count = counts.get(node);
+                if (count == null) {
+                    if (node instanceof Variable) {
+                        variables.add((Variable) node);
+                    } else {
+                        opaque.add(node);
+                    }
+                }
+                counts.put(node, (count == null ? 0 : count) + (negative ? -1 : 1));
+            }
+        }
+    }
+
+    private Expression rebuild() {
+        final List<Expression> positive = new ArrayList<Expression>();
+        final List<Expression> negative = new ArrayList<Expression>();
+        variables.sort(BY_SLOT);
+        for (final Variable variable : variables) {
+            addTerms(variable, counts.get(variable), positive, negative);
+        }
+        for (final Expression node : opaque) {
+            addTerms(node, counts.get(node), positive, negative);
+        }
+        if (constant != (int) constant) {
+            // folded, the constant would overflow where the long overload of
+            // interpret does not, so the literals are kept apart
+            positive.addAll(addedConstants);
+            negative.addAll(subtractedConstants);
+        } else if (constant != 0 || positive.isEmpty() && negative.isEmpty()) {
+            positive.add(factory.number((int) constant));
+        }
+        final Expression added = balancedSum(positive);
+        final Expression subtracted = balancedSum(negative);
+        if (subtracted == null) {
+            return added;
+        }
+        return factory.minus(added == null ? factory.number(0) : added, subtracted);
+    }
+
+    private static void addTerms(final Expression term, final int count,
+                                 final List<Expression> positive, final List<Expression> negative) {
+        final List<Expression> target = count > 0 ? positive : negative;
+        for (int i = Math.abs(count); i > 0; i--) {
+            target.add(term);
+        }
+    }
+
+    // pairs neighbouring terms level by level, giving a tree of depth log n
+    private Expression balancedSum(final List<Expression> terms) {
+        if (terms.isEmpty()) {
+            return null;
+        }
+        List<Expression> level = terms;
+        while (level.size() > 1) {
+            final List<Expression> next = new ArrayList<Expression>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                next.add(factory.plus(level.get(i), level.get(i + 1)));
+            }
+            if (level.size() % 2 == 1) {
+                next.add(level.get(level.size() - 1));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+}
+
+// Creates the nodes of parsed syntax trees.
+
+class ExpressionFactory {
+    public static final ExpressionFactory PLAIN = new ExpressionFactory();
+
+    public Number number(final int value) {
+        return new Number(value);
+    }
+
+    public Variable variable(final String name, final int slot) {
+        return new Variable(name, slot);
+    }
+
+    public Expression plus(final Expression left, final Expression right) {
+        return new Plus(left, right);
+    }
+
+    public Expression minus(final Expression left, final Expression right) {
+        return new Minus(left, right);
+    }
+}
+
+// Hash consing: structurally identical nodes are created once and shared, so
+// a subexpression like "a b +" used by many formulas is a single object. As
+// children are interned before their parents, two operator nodes are
+// identical exactly when they have the same operator and the same child
+// objects, which keeps lookups O(1). Nodes are held weakly and dropped from
+// the table once no syntax tree uses them any more. A variable is the same
+// node in every formula naming it, so it carries no slot: each Evaluator
+// keeps its own dense slots and looks shared variables up by name.
+
+class ExpressionInterner extends ExpressionFactory {
+    private static final int NUMBER = 0;
+    private static final int VARIABLE = 1;
+    private static final int PLUS = 2;
+    private static final int MINUS = 3;
+
+    private final ConcurrentHashMap<NodeKey, NodeReference> nodes = new ConcurrentHashMap<NodeKey, NodeReference>();
+    private final ReferenceQueue<Expression> collected = new ReferenceQueue<Expression>();
+    private final LongAdder shared = new LongAdder();
+    @Override
+    public Number number(final int value) {
+        return (Number) intern(new NodeKey(NUMBER, value, null, null, null));
+    }
+
+    @Override
+    public Variable variable(final String name, final int slot) {
+        return (Variable) intern(new NodeKey(VARIABLE, -1, name, null, null));
+    }
+
+    @Override
+    public Expression plus(final Expression left, final Expression right) {
+        return intern(new NodeKey(PLUS, 0, null, left, right));
+    }
+
+    @Override
+    public Expression minus(final Expression left, final Expression right) {
+        return intern(new NodeKey(MINUS, 0, null, left, right));
+    }
+
+    // number of requested nodes that were already present
+    public long sharedCount() {
+        return shared.sum();
+    }
+
+    public int size() {
+        expunge();
+        return nodes.size();
+    }
+
+    private Expression intern(final NodeKey key) {
+        expunge();
+        while (true) {
+            final NodeReference existing = nodes.get(key);
+            if (existing != null) {
+                final Expression node = existing.get();
+                if (node != null) {
+                    shared.increment();
+                    return node;
+                }
+                nodes.remove(key, existing);
+            }
+            final Expression node = key.create();
+            if (nodes.putIfAbsent(key, new NodeReference(node, key, collected)) == null) {
+                return node;
+            }
+        }
+    }
+
+    private void expunge() {
+        for (Reference<? extends Expression> reference; (reference = collected.poll()) != null; ) {
+            final NodeReference node = (NodeReference) reference;
+            nodes.remove(node.key, node);
+        }
+    }
+
+    private static class NodeReference extends WeakReference<Expression> {
+        final NodeKey key;
+
+        NodeReference(final Expression node, final NodeKey key, final ReferenceQueue<Expression> queue) {
+            super(node, queue);
+            this.key = key;
+        }
+    }
+
+    // children are compared by identity, being interned already
+    private static class NodeKey {
+        final int kind;
+        final int value;
+        final String name;
+        final Expression left;
+        final Expression right;
+
+        NodeKey(final int kind, final int value, final String name, final Expression left, final Expression right) {
+            this.kind = kind;
+            this.value = value;
+            this.name = name;
+            this.left = left;
+            this.right = right;
+        }
+
+        Expression create() {
+            switch (kind) {
+                case NUMBER:
+                    return new Number(value);
+                case VARIABLE:
+                    return new Variable(name, value);
+                case PLUS:
+                    return new Plus(left, right);
+                default:
+                    return new Minus(left, right);
+            }
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof NodeKey)) {
+                return false;
+            }
+            final NodeKey key = (NodeKey) other;
+            return kind == key.kind && value == key.value && left == key.left && right == key.right
+                    && (name == null ? key.name == null : name.equals(key.name));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = kind;
+            hash = 31 * hash + value;
+            hash = 31 * hash + (name == null ? 0 : name.hashCode());
+            hash = 31 * hash + System.identityHashCode(left);
+            hash = 31 * hash + System.identityHashCode(right);
+            return hash;
+        }
+    }
+}
+
+// A bounded cache of parsed Evaluators keyed by their source text, all parsed
+// through one ExpressionInterner so that cached trees share their common
+// subtrees. Entries are spread over independently locked segments, each
+// evicting its least recently used entry once full; parsing happens outside
+// the locks, so a slow parse never blocks lookups of other formulas.
+
+class EvaluatorCache {
+    private final Segment[] segments;
+    private final ExpressionInterner interner = new ExpressionInterner();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public EvaluatorCache(final int maximumSize) {
+        final int count = Math.min(Integer.highestOneBit(Math.max(maximumSize / 64, 1)), 16);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(maximumSize / count, 1));
+        }
+    }
+
+    public Evaluator get(final String expression) {
+        final Segment segment = segments[spread(expression.hashCode()) & (segments.length - 1)];
+        Evaluator evaluator;
+        synchronized (segment) {
+            evaluator = segment.get(expression);
+        }
+        if (evaluator != null) {
+            hits.increment();
+            return evaluator;
+        }
+        misses.increment();
+        final Evaluator parsed = new Evaluator(expression, interner);
+        synchronized (segment) {
+            // another thread may have parsed the same formula meanwhile
+            evaluator = segment.get(expression);
+            if (evaluator == null) {
+                evaluator = parsed;
+                segment.put(expression, parsed);
+            }
+        }
+        return evaluator;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        final long hitCount = hitCount();
+        final long total = hitCount + missCount();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public ExpressionInterner interner() {
+        return interner;
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private class Segment extends LinkedHashMap<String, Evaluator> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Evaluator> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
+
+// Views US-ASCII bytes as characters without decoding them into a String.
+
+class AsciiSequence implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    public AsciiSequence(final ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.remaining());
+    }
+
+    private AsciiSequence(final ByteBuffer bytes, final int offset, final int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(final int index) {
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    public CharSequence subSequence(final int start, final int end) {
+        return new AsciiSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
+
+// Evaluates a syntax tree a whole column at a time. The tree is flattened once
+// into postfix operations over a stack of chunk-sized buffers, so each Plus or
+// Minus becomes one tight loop over CHUNK rows that C2 can auto-vectorize, and
+// the working set stays in cache however many rows the columns hold.
+
+class ColumnEvaluator {
+    private static final int CHUNK = 1024;
+
+    private static final int VARIABLE = 0;
+    private static final int CONSTANT = 1;
+    private static final int PLUS = 2;
+    private static final int MINUS = 3;
+    private static final int NODE = 4;      // any other Expression, evaluated row by row
+
+    private final int[] operations;
+    private final int[] operands;
+    private final Expression[] nodes;
+    private final int maxDepth;
+
+    // slots gives the column each variable is read from
+    public ColumnEvaluator(final Expression syntaxTree, final ToIntFunction<Variable> slots) {
+        final List<Integer> operationList = new ArrayList<Integer>();
+        final List<Integer> operandList = new ArrayList<Integer>();
+        final List<Expression> nodeList = new ArrayList<Expression>();
+        final Deque<Object> work = new ArrayDeque<Object>();
+        int depth = 0;
+        int deepest = 0;
+        work.push(syntaxTree);
+        while (!work.isEmpty()) {
+            final Object item = work.pop();
+            if (item instanceof Integer) {
+                operationList.add((Integer) item);
+                operandList.add(0);
+                depth--;
+                continue;
+            }
+            if (item instanceof Plus) {
+                work.push(PLUS);
+                work.push(((Plus) item).rightOperand);
+                work.push(((Plus) item).leftOperand);
+                continue;
+            }
+            if (item instanceof Minus) {
+                work.push(MINUS);
+                work.push(((Minus) item).rightOperand);
+                work.push(((Minus) item).leftOperand);
+                continue;
+            }
+            if (item instanceof Number) {
+                operationList.add(CONSTANT);
+                operandList.add(((Number) item).number);
+            } else if (item instanceof Variable) {
+                final int slot = slots.applyAsInt((Variable) item);
+                operationList.add(slot < 0 ? CONSTANT : VARIABLE);
+                operandList.add(Math.max(slot, 0));
+            } else {
+                operationList.add(NODE);
+                operandList.add(nodeList.size());
+                nodeList.add((Expression) item);
+            }
+            deepest = Math.max(deepest, ++depth);
+        }
+        operations = new int[operationList.size()];
+        operands = new int[operandList.size()];
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = operationList.get(i);
+            operands[i] = operandList.get(i);
+        }
+        nodes = nodeList.toArray(new Expression[0]);
+        maxDepth = deepest;
+    }
+
+    public void evaluate(final int[][] columns, final int[] out) {
+        final int[][] stack = new int[maxDepth][];
+        for (int i = 1; i < maxDepth; i++) {
+            stack[i] = new int[CHUNK];
+        }
+        final int[] row = new int[columns.length];
+        for (int offset = 0; offset < out.length; offset += CHUNK) {
+            final int length = Math.min(CHUNK, out.length - offset);
+            // the bottom of the stack is the output itself, so the final
+            // result needs no copy; it is rebased on every chunk
+            stack[0] = out;
+            int top = -1;
+            for (int pc = 0; pc < operations.length; pc++) {
+                switch (operations[pc]) {
+                    case VARIABLE:
+                        top++;
+                        System.arraycopy(columns[operands[pc]], offset, stack[top], base(top, offset), length);
+                        break;
+                    case CONSTANT:
+                        top++;
+                        Arrays.fill(stack[top], base(top, offset), base(top, offset) + length, operands[pc]);
+                        break;
+                    case PLUS:
+                        add(stack[top - 1], base(top - 1, offset), stack[top], length);
+                        top--;
+                        break;
+                    case MINUS:
+                        subtract(stack[top - 1], base(top - 1, offset), stack[top], length);
+                        top--;
+                        break;
+                    default:
+                        top++;
+                        final Expression node = nodes[operands[pc]];
+                        final int[] target = stack[top];
+                        final int start = base(top, offset);
+                        for (int i = 0; i < length; i++) {
+                            for (int slot = 0; slot < row.length; slot++) {
+                                row[slot] = columns[slot][offset + i];
+                            }
+                            target[start + i] = node.interpret(row);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    private static int base(final int depth, final int offset) {
+        return depth == 0 ? offset : 0;
+    }
+
+    // the right operand buffer always starts at 0, being above the bottom
+    private static void add(final int[] left, final int start, final int[] right, final int length) {
+        for (int i = 0; i < length; i++) {
+            left[start + i] += right[i];
+        }
+    }
+
+    private static void subtract(final int[] left, final int start, final int[] right, final int length) {
+        for (int i = 0; i < length; i++) {
+            left[start + i] -= right[i];
+        }
+    }
+}
+
+
+// Spreadsheet-style evaluation. Each variable is a cell holding either an input
+// value or a formula, and formulas can be watched like dashboard tiles. A
+// formula is evaluated once and its value kept until one of the cells it
+// refers to changes: setting an input only marks the cells depending on it,
+// transitively, and those are recomputed lazily the next time they are read.
+// A variable bound to a large expression is therefore computed once however
+// many formulas reference it. Formulas containing nodes whose variables cannot
+// be listed are invalidated by every change. Not thread-safe.
+
+class IncrementalContext {
+    private final Map<String, Cell> cells = new HashMap<String, Cell>();
+    private final Set<Cell> opaqueFormulas = new HashSet<Cell>();
+    private final Deque<Cell> evaluating = new ArrayDeque<Cell>();
+    private long recomputations;
+
+    // the context formulas are interpreted against: reading a variable reads
+    // the current value of its cell
+    private final Map<String, Expression> values = new AbstractMap<String, Expression>() {
+        @Override
+        public Expression get(final Object name) {
+            final Cell cell = cells.get(name);
+            return cell == null ? null : cell.current();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Expression>> entrySet() {
+            final Map<String, Expression> snapshot = new HashMap<String, Expression>();
+            for (final Cell cell : cells.values()) {
+                snapshot.put(cell.name, cell.current());
+            }
+            return snapshot.entrySet();
+        }
+    };
+
+    public void set(final String name, final int value) {
+        final Cell cell = cell(name);
+        cell.rebind(null);
+        if (cell.value.number != value) {
+            cell.value = new Number(value);
+            cell.invalidateDependents();
+        }
+    }
+
+    public void bind(final String name, final Expression formula) {
+        final Cell cell = cell(name);
+        cell.rebind(formula);
+        cell.invalidate();
+    }
+
+    public int get(final String name) {
+        return cell(name).value();
+    }
+
+    // A formula over the cells of this context, recomputed only when they change.
+    public Cell watch(final Expression formula) {
+        final Cell cell = new Cell(null);
+        cell.rebind(formula);
+        return cell;
+    }
+
+    // Stops a watched formula from being kept up to date: the cells it read
+    // no longer reference it, so it can be collected.
+    public void unwatch(final Cell watched) {
+        if (watched.name != null) {
+            throw new IllegalArgumentException("Not a watched formula: " + watched.name);
+        }
+        watched.rebind(null);
+    }
+
+    // number of formula evaluations so far
+    public long recomputations() {
+        return recomputations;
+    }
+
+    private Cell cell(final String name) {
+        Cell cell = cells.get(name);
+        if (cell == null) {
+            cell = new Cell(name);
+            cells.put(name, cell);
+        }
+        return cell;
+    }
+
+    public class Cell {
+        private final String name;
+        private Expression formula;
+        private Number value = new Number(0);
+        private boolean dirty;
+        private List<Cell> dependencies = new ArrayList<Cell>();
+        private final Set<Cell> dependents = new HashSet<Cell>();
+
+        private Cell(final String name) {
+            this.name = name;
+        }
+
+        public int value() {
+            return current().number;
+        }
+
+        private Number current() {
+            if (formula != null && dirty) {
+                if (evaluating.contains(this)) {
+                    throw new IllegalStateException("Cyclic binding: " + cycle());
+                }
+                evaluating.push(this);
+                try {
+                    final int result = formula.interpret(values);
+                    if (result != value.number) {
+                        value = new Number(result);
+                    }
+                } finally {
+                    evaluating.pop();
+                }
+                recomputations++;
+                dirty = false;
+            }
+            return value;
+        }
+
+        // the chain of names from this cell back to itself
+        private String cycle() {
+            final StringBuilder path = new StringBuilder(String.valueOf(name));
+            for (final Cell cell : evaluating) {
+                path.insert(0, cell.name + " -> ");
+                if (cell == this) {
+                    break;
+                }
+            }
+            return path.toString();
+        }
+
+        private void rebind(final Expression newFormula) {
+            for (final Cell dependency : dependencies) {
+                dependency.dependents.remove(this);
+            }
+            dependencies = new ArrayList<Cell>();
+            opaqueFormulas.remove(this);
+            formula = newFormula;
+            if (newFormula == null) {
+                return;
+            }
+            final Deque<Expression> work = new ArrayDeque<Expression>();
+            work.push(newFormula);
+            while (!work.isEmpty()) {
+                final Expression node = work.pop();
+                if (node instanceof Plus) {
+                    work.push(((Plus) node).leftOperand);
+                    work.push(((Plus) node).rightOperand);
+                } else if (node instanceof Minus) {
+                    work.push(((Minus) node).leftOperand);
+                    work.push(((Minus) node).rightOperand);
+                } else if (node instanceof Evaluator) {
+                    work.push(((Evaluator) node).syntaxTree());
+                } else if (node instanceof Variable) {
+                    final Cell dependency = cell(((Variable) node).name);
+                    if (dependency.dependents.add(this)) {
+                        dependencies.add(dependency);
+                    }
+                } else if (!(node instanceof Number)) {
+                    // may read any variable
+                    opaqueFormulas.add(this);
+                }
+            }
+            dirty = true;
+        }
+
+        private void invalidate() {
+            dirty = true;
+            invalidateDependents();
+        }
+
+        // marks every cell depending on this one, stopping at cells already
+        // marked since their dependents were marked along with them
+        private void invalidateDependents() {
+            final Deque<Cell> work = new ArrayDeque<Cell>(dependents);
+            work.addAll(opaqueFormulas);
+            while (!work.isEmpty()) {
+                final Cell cell = work.pop();
+                if (!cell.dirty) {
+                    cell.dirty = true;
+                    work.addAll(cell.dependents);
+                }
+            }
+        }
+    }
+}
+
+
+// Evaluates many independent expressions against one shared, read-only
+// context across the cores of a ForkJoinPool. The expressions are split into
+// ranges that idle workers steal from each other, and a single tree larger
+// than SPLIT_SIZE nodes is itself split at its Plus and Minus nodes, so one
+// huge formula does not leave the other cores waiting.
+
+class ParallelEvaluator {
+    // below these, forking costs more than it saves
+    private static final int BATCH_SIZE = 256;
+    private static final int SPLIT_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelEvaluator(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // results[i] is the value of the i-th expression; the context must not be
+    // modified during the call
+    public int[] evaluate(final Collection<? extends Expression> expressions,
+                          final Map<String, Expression> context) {
+        final Expression[] trees = expressions.toArray(new Expression[0]);
+        final int[] results = new int[trees.length];
+        pool.invoke(new RangeTask(trees, context, results, 0, trees.length));
+        return results;
+    }
+
+    // marks a Plus or Minus whose operands have been counted
+    private static final Expression COUNTED = new Number(0);
+
+    // Whether the tree has more than limit nodes. Nodes do not record their
+    // size, so this counts them, but gives up as soon as the limit is passed:
+    // it never costs more than walking limit nodes, and no more than
+    // interpreting a smaller tree.
+    private static boolean largerThan(final Expression tree, final int limit) {
+        final Deque<Expression> work = new ArrayDeque<Expression>();
+        work.push(tree);
+        int count = 0;
+        while (!work.isEmpty()) {
+            final Expression node = work.pop();
+            if (++count > limit) {
+                return true;
+            }
+            if (node instanceof Plus) {
+                work.push(((Plus) node).rightOperand);
+                work.push(((Plus) node).leftOperand);
+            } else if (node instanceof Minus) {
+                work.push(((Minus) node).rightOperand);
+                work.push(((Minus) node).leftOperand);
+            } else if (node instanceof Evaluator) {
+                count--;
+                work.push(((Evaluator) node).syntaxTree());
+            }
+        }
+        return false;
+    }
+
+    // The Plus and Minus nodes of tree with more than SPLIT_SIZE nodes, found
+    // in one post-order count, so that splitting a large tree never counts a
+    // subtree twice however lopsided it is. Only called for large trees.
+    private static Set<Expression> largeNodes(final Expression tree) {
+        final Set<Expression> large = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+        final Deque<Expression> work = new ArrayDeque<Expression>();
+        final Deque<Integer> sizes = new ArrayDeque<Integer>();
+        work.push(tree);
+        while (!work.isEmpty()) {
+            final Expression node = work.pop();
+            if (node == COUNTED) {
+                final Expression counted = work.pop();
+                final int size = (int) Math.min(Integer.MAX_VALUE, 1L + sizes.pop() + sizes.pop());
+                if (size > SPLIT_SIZE) {
+                    large.add(counted);
+                }
+                sizes.push(size);
+            } else if (node instanceof Plus) {
+                work.push(node);
+                work.push(COUNTED);
+                work.push(((Plus) node).rightOperand);
+                work.push(((Plus) node).leftOperand);
+            } else if (node instanceof Minus) {
+                work.push(node);
+                work.push(COUNTED);
+                work.push(((Minus) node).rightOperand);
+                work.push(((Minus) node).leftOperand);
+            } else if (node instanceof Evaluator) {
+                work.push(((Evaluator) node).syntaxTree());
+            } else {
+                sizes.push(1);
+            }
+        }
+        return large;
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Expression[] trees;
+        private final Map<String, Expression> context;
+        private final int[] results;
+        private final int from;
+        private final int to;
+
+        RangeTask(final Expression[] trees, final Map<String, Expression> context,
+                  final int[] results, final int from, final int to) {
+            this.trees = trees;
+            this.context = context;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(trees, context, results, from, middle),
+                        new RangeTask(trees, context, results, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                final Expression tree = trees[i];
+                if (largerThan(tree, SPLIT_SIZE)) {
+                    final TreeTask task = new TreeTask(tree, context, largeNodes(tree));
+                    task.compute();
+                    results[i] = task.result;
+                } else {
+                    results[i] = tree.interpret(context);
+                }
+            }
+        }
+    }
+
+    private static class TreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Expression tree;
+        private final Map<String, Expression> context;
+        private final Set<Expression> largeNodes;
+        int result;
+
+        TreeTask(final Expression tree, final Map<String, Expression> context, final Set<Expression> largeNodes) {
+            this.tree = tree;
+            this.context = context;
+            this.largeNodes = largeNodes;
+        }
+
+        @Override
+        protected void compute() {
+            Expression node = tree;
+            if (node instanceof Evaluator) {
+                node = ((Evaluator) node).syntaxTree();
+            }
+            if (!largeNodes.contains(node)) {
+                result = node.interpret(context);
+                return;
+            }
+            final boolean plus = node instanceof Plus;
+            final TreeTask left = new TreeTask(plus ? ((Plus) node).leftOperand : ((Minus) node).leftOperand,
+                    context, largeNodes);
+            final TreeTask right = new TreeTask(plus ? ((Plus) node).rightOperand : ((Minus) node).rightOperand,
+                    context, largeNodes);
+            left.fork();
+            right.compute();
+            left.join();
+            result = plus ? left.result + right.result : left.result - right.result;
+        }
     }
 }
 
@@ -109,5 +1632,25 @@ public class Main {
         variables.put("z", new Number(42));
         final int result = sentence.interpret(variables);
         System.out.println(result);
+
+        // the same sentence compiled once, then evaluated against slot values
+        final CompiledExpression compiled = sentence.compile();
+        System.out.println(compiled.eval(new int[] {5, 10, 42}));
+        // or walked directly over the slot values
+        System.out.println(sentence.interpret(new int[] {5, 10, 42}));
+
+        // or over whole columns of rows at once
+        final int[][] columns = {{5, 1}, {10, 2}, {42, 3}};
+        final int[] results = new int[2];
+        sentence.interpret(columns, results);
+        System.out.println(results[0] + " " + results[1]);
+
+        // repeated formulas are parsed once, and shared subtrees stored once
+        final EvaluatorCache cache = new EvaluatorCache(1000);
+        cache.get("a b + c -");
+        cache.get("a b + c +");
+        cache.get("a b + c -");
+        System.out.println("hits: " + cache.hitCount() + ", misses: " + cache.missCount()
+                + ", shared nodes: " + cache.interner().sharedCount());
     }
 }
\ No newline at end of file
@@ -23,19 +23,311 @@
 
 // Example of class RedHead implementing the Iterable interface:
 
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 class RedHead implements Iterable<RedHead> {
-    private Set<RedHead> redHeads = new HashSet<RedHead>();
+    // How a RedHead keeps its members. A HashSet costs a node object per
+    // member, scattered across the heap; a dense array keeps the members
+    // contiguous in insertion order, with an open-addressing index of ints
+    // beside it, for under half the memory and a cache-friendly walk.
+    enum Storage {
+        HASH_SET {
+            Set<RedHead> create() {
+                return new HashSet<RedHead>();
+            }
+        },
+        DENSE_ARRAY {
+            Set<RedHead> create() {
+                return new DenseSet();
+            }
+        };
+
+        abstract Set<RedHead> create();
+    }
+
+    private final Storage storage;
+    // Allocated on the first add, as most RedHeads in a large family are
+    // leaves that never get any members.
+    private Set<RedHead> redHeads;
+
+    public RedHead() {
+        this(Storage.HASH_SET);
+    }
+
+    public RedHead(final Storage storage) {
+        this.storage = storage;
+    }
 
     public void add(final RedHead redHead) {
+        if (redHeads == null) {
+            redHeads = storage.create();
+        }
         redHeads.add(redHead);
     }
+    public int size() {
+        return redHeads == null ? 0 : redHeads.size();
+    }
     @Override
     public Iterator<RedHead> iterator() {
-        return redHeads.iterator();
+        return redHeads == null ? Collections.<RedHead>emptyIterator() : redHeads.iterator();
+    }
+    // Iterable's default spliterator knows neither the size nor how to
+    // split the set evenly, which starves parallel streams; the set's own
+    // spliterator knows both.
+    @Override
+    public Spliterator<RedHead> spliterator() {
+        return redHeads == null ? Spliterators.<RedHead>emptySpliterator() : redHeads.spliterator();
+    }
+    public Stream<RedHead> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+    public Stream<RedHead> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    // Walks over the whole hierarchy below this RedHead, not only its
+    // direct members. The walks are lazy and use an explicit stack or queue,
+    // so deep hierarchies cannot overflow the call stack, and a member
+    // reached twice, through a cycle or a shared branch, is only visited the
+    // first time. Each visits the members, never this RedHead itself.
+
+    public Iterable<RedHead> preOrder() {
+        return () -> new PreOrderIterator(this, Integer.MAX_VALUE);
+    }
+    // Pre-order, down to maxDepth levels below this RedHead: its direct
+    // members are at depth 1.
+    public Iterable<RedHead> preOrder(final int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Negative depth: " + maxDepth);
+        }
+        return () -> new PreOrderIterator(this, maxDepth);
+    }
+    public Iterable<RedHead> breadthFirst() {
+        return () -> new BreadthFirstIterator(this);
+    }
+
+    private static Set<RedHead> identitySet(final RedHead root) {
+        Set<RedHead> visited = Collections.newSetFromMap(new IdentityHashMap<RedHead, Boolean>());
+        visited.add(root);
+        return visited;
+    }
+
+    // A stack of the member iterators of every RedHead on the way down. With
+    // a depth bound, a member first reached at the bound is not expanded, so
+    // each member's shallowest depth so far is kept, and a member reached
+    // again higher up is expanded from there, though not visited twice.
+    private static final class PreOrderIterator implements Iterator<RedHead> {
+        private final ArrayDeque<Iterator<RedHead>> stack = new ArrayDeque<Iterator<RedHead>>();
+        private final Map<RedHead, Integer> depths = new IdentityHashMap<RedHead, Integer>();
+        private final int maxDepth;
+        private RedHead next;
+
+        PreOrderIterator(final RedHead root, final int maxDepth) {
+            depths.put(root, 0);
+            this.maxDepth = maxDepth;
+            if (maxDepth > 0) {
+                stack.push(root.iterator());
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        @Override
+        public RedHead next() {
+            RedHead current = next;
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            // descend into current's members before its siblings
+            if (stack.size() < maxDepth && current.size() > 0) {
+                stack.push(current.iterator());
+            }
+            advance();
+            return current;
+        }
+
+        private void advance() {
+            next = null;
+            while (!stack.isEmpty()) {
+                Iterator<RedHead> members = stack.peek();
+                if (!members.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                RedHead member = members.next();
+                // unbounded, every member is expanded when first visited
+                int depth = maxDepth == Integer.MAX_VALUE ? 0 : stack.size();
+                Integer reached = depths.get(member);
+                if (reached == null) {
+                    depths.put(member, depth);
+                    next = member;
+                    return;
+                }
+                if (depth < reached) {
+                    depths.put(member, depth);
+                    if (depth < maxDepth && member.size() > 0) {
+                        stack.push(member.iterator());
+                    }
+                }
+            }
+        }
+    }
+
+    // A queue of the RedHeads whose members are still to be visited
+    private static final class BreadthFirstIterator implements Iterator<RedHead> {
+        private final ArrayDeque<RedHead> queue = new ArrayDeque<RedHead>();
+        private final Set<RedHead> visited;
+        private Iterator<RedHead> members;
+        private RedHead next;
+
+        BreadthFirstIterator(final RedHead root) {
+            this.visited = identitySet(root);
+            this.members = root.iterator();
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        @Override
+        public RedHead next() {
+            RedHead current = next;
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            if (current.size() > 0) {
+                queue.add(current);
+            }
+            advance();
+            return current;
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                while (members.hasNext()) {
+                    RedHead member = members.next();
+                    if (visited.add(member)) {
+                        next = member;
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                members = queue.poll().iterator();
+            }
+        }
+    }
+
+    // A set of the members in insertion order in one array, and an
+    // open-addressing table, kept at most half full and probed linearly,
+    // holding each member's position in the array plus one (0 for a free
+    // slot). Members cannot be removed.
+    private static final class DenseSet extends AbstractSet<RedHead> {
+        private RedHead[] elements = new RedHead[4];
+        private int[] table = new int[8];
+        private int size;
+
+        @Override
+        public boolean add(final RedHead redHead) {
+            if (redHead == null) {
+                throw new NullPointerException();
+            }
+            int slot = slotOf(redHead);
+            if (table[slot] != 0) {
+                return false;
+            }
+            if (size == elements.length) {
+                elements = Arrays.copyOf(elements, size * 2);
+            }
+            elements[size++] = redHead;
+            if (size * 2 > table.length) {
+                rehash(table.length * 2);
+            } else {
+                table[slot] = size;
+            }
+            return true;
+        }
+        @Override
+        public boolean contains(final Object o) {
+            return o instanceof RedHead && table[slotOf((RedHead) o)] != 0;
+        }
+        @Override
+        public int size() {
+            return size;
+        }
+        @Override
+        public Iterator<RedHead> iterator() {
+            return new Iterator<RedHead>() {
+                private final int expectedSize = size;
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+                @Override
+                public RedHead next() {
+                    if (size != expectedSize) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return elements[next++];
+                }
+            };
+        }
+        // Splits exactly in halves, and so stays sized all the way down
+        @Override
+        public Spliterator<RedHead> spliterator() {
+            return Spliterators.spliterator(elements, 0, size,
+                    Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.ORDERED);
+        }
+
+        // The slot holding redHead, or the free slot where it would go
+        private int slotOf(final RedHead redHead) {
+            int mask = table.length - 1;
+            int slot = hash(redHead) & mask;
+            while (table[slot] != 0 && !elements[table[slot] - 1].equals(redHead)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+        private void rehash(final int capacity) {
+            table = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(elements[i]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+        }
+        private static int hash(final RedHead redHead) {
+            int h = redHead.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
     }
 }
 
@@ -48,6 +340,10 @@ class Weasley extends RedHead {
     public Weasley(final String name) {
         this.name = name;
     }
+    public Weasley(final String name, final Storage storage) {
+        super(storage);
+        this.name = name;
+    }
     public String toString() {
         return this.name + " Weasley";
     }
@@ -61,11 +357,13 @@ public class Main {
     public static void main(String[] args) {
         System.out.println("Hello World!");
 
-        RedHead redHead = new RedHead();
+        // Members kept contiguously, in the order they were added
+        RedHead redHead = new RedHead(RedHead.Storage.DENSE_ARRAY);
 
         redHead.add(new Weasley("Arthur"));
         redHead.add(new Weasley("Molly"));
-        redHead.add(new Weasley("Bill"));
+        RedHead bill = new Weasley("Bill");
+        redHead.add(bill);
         redHead.add(new Weasley("Charlie"));
         redHead.add(new Weasley("Percy"));
         redHead.add(new Weasley("Fred"));
@@ -76,5 +374,17 @@ public class Main {
         for (RedHead rh : redHead) {
             System.out.println(rh);
         }
+
+        // Members can have members of their own
+        bill.add(new Weasley("Victoire"));
+        bill.add(new Weasley("Dominique"));
+        bill.add(new Weasley("Louis"));
+        for (RedHead rh : redHead.preOrder()) {
+            System.out.println(rh);
+        }
+
+        // Aggregations over large families can be spread across cores
+        System.out.println(redHead.parallelStream().filter(rh -> rh.toString().length() > 11).count()
+                + " Weasleys have long names");
     }
 }
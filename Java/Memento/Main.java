@@ -12,12 +12,24 @@
 // number generator (it will always produce the same sequence thereafter when
 // initialized with the seed state) and the state in a finite state machine.
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         System.out.println("Hello World!");
 
@@ -33,39 +45,762 @@ public class Main {
         originator.set("State4");
 
         originator.restoreFromMemento(savedStates.get(1));
+
+        // For long histories, a caretaker that stores deltas between versions
+        Originator.History history = new Originator.History(64, 1024 * 1024);
+        history.add(originator.saveToMemento());
+        originator.set("State3 and then some");
+        long version = history.add(originator.saveToMemento());
+        originator.set("State5");
+        originator.restoreFromMemento(history.get(version));
+
+        // Mementos of a large state share everything but the edited parts
+        originator.insert(6, "!");
+        Originator.Memento edited = originator.saveToMemento();
+        originator.delete(0, 6);
+        originator.restoreFromMemento(edited);
+
+        // Mementos that outlive the process, even when it dies in the middle
+        // of saving one, before or after the record's tag is written
+        originator.restoreFromMemento(journalAfterCrash(false));
+        originator.restoreFromMemento(journalAfterCrash(true));
+
+        // Shared by several threads, an originator that needs no locking
+        Originator.Concurrent shared = new Originator.Concurrent();
+        shared.set("State1");
+        long before = shared.version();
+        Originator.Memento snapshot = shared.saveToMemento();
+        shared.insert(6, " and more");
+        System.out.println("Concurrent: Restored: " + shared.restoreFromMemento(snapshot, before)
+                + ", state: " + shared.getState());
+    }
+
+    // Saves 3 mementos, leaves a fourth half written, then reopens the
+    // journal and saves on into a second segment; returns the last memento
+    // after reopening once more.
+    private static Originator.Memento journalAfterCrash(boolean tagWritten) throws IOException {
+        Path directory = Files.createTempDirectory("mementos");
+        directory.toFile().deleteOnExit();
+        Path segment = directory.resolve("segment-00000000.log");
+        segment.toFile().deleteOnExit();
+        directory.resolve("segment-00000001.log").toFile().deleteOnExit();
+        try (Originator.Journal journal = new Originator.Journal(directory, 4096)) {
+            for (int i = 1; i <= 3; i++) {
+                journal.save(new Originator.Memento("State" + i));  // 16 bytes of header and 6 of state
+            }
+        }
+        // a long record, with its CRC missing and maybe its tag
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(4096 - 3 * 22);
+            torn.putInt(tagWritten ? torn.capacity() - 16 + 1 : 0).putInt(0).putLong(3);
+            while (torn.hasRemaining()) {
+                torn.put((byte) 'x');
+            }
+            torn.flip();
+            channel.write(torn, 3 * 22);
+        }
+        try (Originator.Journal journal = new Originator.Journal(directory, 4096)) {
+            System.out.println("Journal: Recovered " + journal.size() + " mementos");  // 3
+            for (int i = 4; i <= 200; i++) {
+                journal.save(new Originator.Memento("State" + i + " and then some"));
+            }
+        }
+        try (Originator.Journal journal = new Originator.Journal(directory, 4096)) {
+            System.out.println("Journal: Recovered " + journal.size() + " mementos");  // 200
+            return journal.read(journal.size() - 1);
+        }
     }
 }
 
 class Originator {
-    private String state;
+    // Immutable and structurally shared, so a memento can hold the state
+    // itself instead of a copy: saving is O(1) however large the state, and
+    // successive mementos share whatever was not edited in between.
+    private Rope state;
     // The class could also contain additional data that is not part of the
     // state saved in the memento...
 
     public void set(String state) {
-        this.state = state;
+        this.state = state == null ? null : Rope.of(state);
         System.out.println("Originator: Setting state to " + state);
     }
 
+    // Edits in O(log n), leaving the previous state untouched.
+
+    public void insert(int index, String text) {
+        state = current().insert(index, text);
+        System.out.println("Originator: Inserting " + text.length() + " characters at " + index);
+    }
+
+    public void delete(int from, int to) {
+        state = current().delete(from, to);
+        System.out.println("Originator: Deleting characters " + from + " to " + to);
+    }
+
     public Memento saveToMemento() {
         System.out.println("Originator: Saving to Memento.");
         return new Memento(this.state);
     }
 
     public void restoreFromMemento(Memento memento) {
-        this.state = memento.getSavedState();
+        this.state = memento.getSavedRope();
         System.out.println("Originator: State after restoring from Memento: " + state);
     }
 
+    private Rope current() {
+        return state == null ? Rope.EMPTY : state;
+    }
+
     public static class Memento {
-        private final String state;
+        private final Rope state;
 
         public Memento(String stateToSave) {
+            this(stateToSave == null ? null : Rope.of(stateToSave));
+        }
+
+        private Memento(Rope stateToSave) {
             state = stateToSave;
         }
 
         // accessible by outer class only
         private String getSavedState() {
+            return state == null ? null : state.toString();
+        }
+
+        private Rope getSavedRope() {
             return state;
         }
     }
-}
\ No newline at end of file
+
+    // An originator that many threads can edit and snapshot at once without
+    // locks. Each edit publishes a new immutable version of the state through
+    // a compare-and-set, retrying if another edit got in first, so an edit
+    // never sees a half-made state and a memento, being just the current
+    // version's rope, is taken in O(1) without stopping the writers. Restoring
+    // is a single swap. Unlike Originator it does not log every call, as
+    // System.out would serialize the threads again.
+    public static class Concurrent {
+        private final AtomicReference<Version> current = new AtomicReference<>(new Version(null, 0));
+
+        public void set(String state) {
+            Rope rope = state == null ? null : Rope.of(state);
+            current.updateAndGet(version -> version.next(rope));
+        }
+
+        public void insert(int index, String text) {
+            current.updateAndGet(version -> version.next(version.text().insert(index, text)));
+        }
+
+        public void delete(int from, int to) {
+            current.updateAndGet(version -> version.next(version.text().delete(from, to)));
+        }
+
+        public Memento saveToMemento() {
+            return new Memento(current.get().state);
+        }
+
+        public void restoreFromMemento(Memento memento) {
+            current.updateAndGet(version -> version.next(memento.getSavedRope()));
+        }
+
+        // Restores only if nothing was edited since version() returned
+        // expectedVersion, so a restore cannot silently undo a concurrent edit.
+        public boolean restoreFromMemento(Memento memento, long expectedVersion) {
+            Version version = current.get();
+            return version.number == expectedVersion
+                    && current.compareAndSet(version, version.next(memento.getSavedRope()));
+        }
+
+        // The number of edits and restores so far
+        public long version() {
+            return current.get().number;
+        }
+
+        public String getState() {
+            Rope state = current.get().state;
+            return state == null ? null : state.toString();
+        }
+
+        private static final class Version {
+            final Rope state;
+            final long number;
+
+            Version(Rope state, long number) {
+                this.state = state;
+                this.number = number;
+            }
+
+            Version next(Rope state) {
+                return new Version(state, number + 1);
+            }
+
+            Rope text() {
+                return state == null ? Rope.EMPTY : state;
+            }
+        }
+    }
+
+    // A caretaker for long undo histories. Instead of one full copy of the
+    // state per memento, it keeps a full snapshot every snapshotInterval
+    // versions and, in between, only what changed since the previous version:
+    // the text replacing the part between their common prefix and suffix. A
+    // version is restored by replaying deltas from the nearest snapshot
+    // before it, at most snapshotInterval - 1 of them. Once the history
+    // exceeds maxBytes, the oldest versions are dropped first; when that
+    // leaves a delta at the start, it is turned into a snapshot. It lives in
+    // Originator because it has to look inside the mementos.
+    public static class History {
+        private final int snapshotInterval;
+        private final long maxBytes;
+        private Entry[] entries = new Entry[16];
+        private int head;
+        private int size;
+        private long firstVersion;
+        private long bytes;
+        private String lastState;
+        private int sinceSnapshot;
+
+        public History(int snapshotInterval, long maxBytes) {
+            this.snapshotInterval = snapshotInterval;
+            this.maxBytes = maxBytes;
+        }
+
+        // returns the version to restore the memento with
+        public long add(Memento memento) {
+            String state = memento.getSavedState();
+            Entry entry;
+            if (size == 0 || sinceSnapshot + 1 >= snapshotInterval || state == null || lastState == null) {
+                entry = new Entry(state);
+                sinceSnapshot = 0;
+            } else {
+                entry = Entry.delta(lastState, state);
+                sinceSnapshot++;
+            }
+            if (size == entries.length) {
+                Entry[] grown = new Entry[size * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = at(i);
+                }
+                entries = grown;
+                head = 0;
+            }
+            entries[(head + size) % entries.length] = entry;
+            size++;
+            bytes += entry.bytes();
+            lastState = state;
+            while (bytes > maxBytes && size > 1) {
+                evictOldest();
+            }
+            return firstVersion + size - 1;
+        }
+
+        public Memento get(long version) {
+            if (version < firstVersion || version >= firstVersion + size) {
+                throw new IndexOutOfBoundsException("Version " + version + " is not in the history ["
+                        + firstVersion + ", " + (firstVersion + size) + ")");
+            }
+            return new Memento(stateAt((int) (version - firstVersion)));
+        }
+
+        public long firstVersion() {
+            return firstVersion;
+        }
+
+        public long lastVersion() {
+            return firstVersion + size - 1;
+        }
+
+        // estimated heap held by the history
+        public long sizeInBytes() {
+            return bytes;
+        }
+
+        private Entry at(int index) {
+            return entries[(head + index) % entries.length];
+        }
+
+        private String stateAt(int index) {
+            int snapshot = index;
+            while (!at(snapshot).isSnapshot()) {
+                snapshot--;
+            }
+            if (snapshot == index) {
+                return at(index).text;
+            }
+            // every delta edits the same builder, rather than copying the
+            // whole state once per delta
+            StringBuilder state = new StringBuilder(at(snapshot).text);
+            for (int i = snapshot + 1; i <= index; i++) {
+                at(i).applyTo(state);
+            }
+            return state.toString();
+        }
+
+        private void evictOldest() {
+            if (size > 1 && !at(1).isSnapshot()) {
+                Entry rebased = new Entry(at(1).applyTo(new StringBuilder(at(0).text)).toString());
+                bytes += rebased.bytes() - at(1).bytes();
+                entries[(head + 1) % entries.length] = rebased;
+            }
+            bytes -= at(0).bytes();
+            entries[head] = null;
+            head = (head + 1) % entries.length;
+            size--;
+            firstVersion++;
+        }
+
+        // Either a full state (prefix < 0), or the previous state with the
+        // characters between its first prefix and last suffix characters
+        // replaced by text.
+        private static class Entry {
+            final int prefix;
+            final int suffix;
+            final String text;
+
+            Entry(String state) {
+                this(-1, 0, state);
+            }
+
+            private Entry(int prefix, int suffix, String text) {
+                this.prefix = prefix;
+                this.suffix = suffix;
+                this.text = text;
+            }
+
+            static Entry delta(String from, String to) {
+                int max = Math.min(from.length(), to.length());
+                int prefix = 0;
+                while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+                    prefix++;
+                }
+                int suffix = 0;
+                while (suffix < max - prefix
+                        && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix)) {
+                    suffix++;
+                }
+                return new Entry(prefix, suffix, to.substring(prefix, to.length() - suffix));
+            }
+
+            boolean isSnapshot() {
+                return prefix < 0;
+            }
+
+            StringBuilder applyTo(StringBuilder previous) {
+                return previous.replace(prefix, previous.length() - suffix, text);
+            }
+
+            // object, fields and the text's characters
+            long bytes() {
+                return 32 + (text == null ? 0 : 40 + 2L * text.length());
+            }
+        }
+    }
+
+    // A caretaker keeping mementos on disk, so they survive a restart and
+    // cost no heap. Mementos are appended to memory-mapped segment files as
+    // records of
+    //
+    //      tag (int)       0: no record, -1: null state, else length + 1
+    //      crc (int)       CRC32 of the version and the state bytes
+    //      version (long)
+    //      state           UTF-8
+    //
+    // and an in-memory index of record positions makes reading any version
+    // O(1). Appending does not wait for the disk: sync(version) does, and
+    // all threads syncing while a force is in progress are covered by the
+    // next one, so concurrent savers share the cost of each fsync. Opening a
+    // journal scans the records to rebuild the index and stops at the first
+    // one whose tag or CRC does not check out: whatever a crash left half
+    // written is discarded, and the rest of its segment cleared for the next
+    // appends.
+    public static class Journal implements AutoCloseable {
+        private static final int HEADER_SIZE = 16;
+
+        private final Path directory;
+        private final int segmentSize;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        // segment << 32 | offset of each version's record
+        private long[] positions = new long[1024];
+        private int size;
+        private int writeOffset;
+
+        private final Object syncLock = new Object();
+        private long durableVersions;
+        private boolean syncing;
+
+        public Journal(Path directory, int segmentSize) throws IOException {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            Files.createDirectories(directory);
+            recover();
+        }
+
+        // Appends without waiting for the disk; returns the memento's version.
+        public synchronized long append(Memento memento) {
+            String state = memento.getSavedState();
+            byte[] bytes = state == null ? new byte[0] : state.getBytes(StandardCharsets.UTF_8);
+            int length = HEADER_SIZE + bytes.length;
+            if (length > segmentSize) {
+                throw new IllegalArgumentException("State of " + bytes.length + " bytes exceeds the segment size");
+            }
+            if (segments.isEmpty() || writeOffset + length > segmentSize) {
+                segments.add(map(segments.size()));
+                writeOffset = 0;
+            }
+            long version = size;
+            MappedByteBuffer segment = segments.get(segments.size() - 1);
+            segment.putInt(writeOffset + 4, crc(version, bytes));
+            segment.putLong(writeOffset + 8, version);
+            segment.put(writeOffset + HEADER_SIZE, bytes);
+            // the tag goes last, as it is what makes the record visible
+            segment.putInt(writeOffset, state == null ? -1 : bytes.length + 1);
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = (long) (segments.size() - 1) << 32 | writeOffset;
+            writeOffset += length;
+            return version;
+        }
+
+        // Returns once version, and every version before it, is on disk. One
+        // thread at a time forces the segments, outside the lock, and every
+        // thread that comes to sync meanwhile waits for the next force.
+        public void sync(long version) {
+            synchronized (this) {
+                if (version < 0 || version >= size) {
+                    throw new IndexOutOfBoundsException("Version " + version + " of " + size);
+                }
+            }
+            while (true) {
+                long from;
+                synchronized (syncLock) {
+                    while (syncing && durableVersions <= version) {
+                        try {
+                            syncLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while syncing the journal", e);
+                        }
+                    }
+                    if (durableVersions > version) {
+                        return;
+                    }
+                    syncing = true;
+                    from = durableVersions;
+                }
+                long target;
+                List<MappedByteBuffer> dirty;
+                synchronized (this) {
+                    target = size;
+                    int first = from == 0 ? 0 : (int) (positions[(int) from - 1] >>> 32);
+                    dirty = new ArrayList<>(segments.subList(Math.min(first, segments.size()), segments.size()));
+                }
+                boolean forced = false;
+                try {
+                    for (MappedByteBuffer segment : dirty) {
+                        segment.force();
+                    }
+                    forced = true;
+                } finally {
+                    synchronized (syncLock) {
+                        if (forced) {
+                            durableVersions = Math.max(durableVersions, target);
+                        }
+                        syncing = false;
+                        syncLock.notifyAll();
+                    }
+                }
+            }
+        }
+
+        public long save(Memento memento) {
+            long version = append(memento);
+            sync(version);
+            return version;
+        }
+
+        public Memento read(long version) {
+            MappedByteBuffer segment;
+            int offset;
+            synchronized (this) {
+                if (version < 0 || version >= size) {
+                    throw new IndexOutOfBoundsException("Version " + version + " of " + size);
+                }
+                segment = segments.get((int) (positions[(int) version] >>> 32));
+                offset = (int) positions[(int) version];
+            }
+            int tag = segment.getInt(offset);
+            if (tag == -1) {
+                return new Memento((String) null);
+            }
+            byte[] bytes = new byte[tag - 1];
+            segment.get(offset + HEADER_SIZE, bytes);
+            return new Memento(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        public synchronized long size() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+            if (size > 0) {
+                sync(size - 1);
+            }
+        }
+
+        private void recover() throws IOException {
+            for (int index = 0; Files.exists(segmentPath(index)); index++) {
+                MappedByteBuffer segment = map(index);
+                segments.add(segment);
+                int offset = 0;
+                while (offset + HEADER_SIZE <= segmentSize) {
+                    int tag = segment.getInt(offset);
+                    int length = tag == -1 ? 0 : tag - 1;
+                    if (tag == 0 || tag < -1 || length > segmentSize - offset - HEADER_SIZE
+                            || segment.getLong(offset + 8) != size) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    segment.get(offset + HEADER_SIZE, bytes);
+                    if (segment.getInt(offset + 4) != crc(size, bytes)) {
+                        break;
+                    }
+                    if (size == positions.length) {
+                        positions = Arrays.copyOf(positions, size * 2);
+                    }
+                    positions[size++] = (long) index << 32 | offset;
+                    offset += HEADER_SIZE + length;
+                }
+                writeOffset = offset;
+                if (!isZero(segment, offset)) {
+                    // A torn record, its tag written or not, as append writes
+                    // the tag last. Anything after it in this segment is
+                    // cleared, or the next append could leave part of it
+                    // where a later scan would take it for a record. A torn
+                    // record is only ever the last one written, so a later
+                    // segment holding records means the journal is damaged,
+                    // not that a write was cut short.
+                    for (int later = index + 1; Files.exists(segmentPath(later)); later++) {
+                        if (map(later).getInt(0) != 0) {
+                            throw new IOException("Corrupt record " + size + " in " + segmentPath(index)
+                                    + ", followed by more records");
+                        }
+                    }
+                    for (int i = offset; i < segmentSize; i++) {
+                        segment.put(i, (byte) 0);
+                    }
+                    segment.force();
+                    for (int later = index + 1; Files.deleteIfExists(segmentPath(later)); later++) {
+                        // empty segments left after the torn record
+                    }
+                    break;
+                }
+            }
+            durableVersions = size;
+        }
+
+        private boolean isZero(MappedByteBuffer segment, int from) {
+            for (int i = from; i < segmentSize; i++) {
+                if (segment.get(i) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private MappedByteBuffer map(int index) {
+            try (FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Path segmentPath(int index) {
+            return directory.resolve(String.format("segment-%08d.log", index));
+        }
+
+        private static int crc(long version, byte[] bytes) {
+            CRC32 crc = new CRC32();
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                crc.update((int) (version >>> shift));
+            }
+            crc.update(bytes);
+            return (int) crc.getValue();
+        }
+    }
+}
+
+// An immutable string stored as a balanced tree of short pieces. Inserting
+// or deleting builds O(log n) new nodes and shares every other node with the
+// original, which stays valid: this is what makes keeping many versions of a
+// large state cheap. The tree is kept balanced the AVL way, the depths of
+// the two children of a node differing by at most one.
+
+abstract class Rope {
+    static final Rope EMPTY = new Leaf("");
+    // longest piece built by Rope.of, and by joining two short pieces
+    private static final int LEAF_SIZE = 512;
+
+    abstract int length();
+
+    abstract int depth();
+
+    abstract void appendTo(StringBuilder builder);
+
+    static Rope of(String text) {
+        if (text.length() <= LEAF_SIZE) {
+            return new Leaf(text);
+        }
+        // pairs neighbouring pieces level by level into a balanced tree
+        List<Rope> level = new ArrayList<>();
+        for (int i = 0; i < text.length(); i += LEAF_SIZE) {
+            level.add(new Leaf(text.substring(i, Math.min(text.length(), i + LEAF_SIZE))));
+        }
+        while (level.size() > 1) {
+            List<Rope> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? join(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    Rope insert(int index, String text) {
+        checkIndex(index, length());
+        Rope[] parts = split(this, index);
+        return join(join(parts[0], of(text)), parts[1]);
+    }
+
+    Rope delete(int from, int to) {
+        checkIndex(to, length());
+        checkIndex(from, to);
+        Rope[] tail = split(this, to);
+        return join(split(tail[0], from)[0], tail[1]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length());
+        appendTo(builder);
+        return builder.toString();
+    }
+
+    private static void checkIndex(int index, int length) {
+        if (index < 0 || index > length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of [0, " + length + "]");
+        }
+    }
+
+    private static Rope[] split(Rope rope, int index) {
+        if (index <= 0) {
+            return new Rope[] {EMPTY, rope};
+        }
+        if (index >= rope.length()) {
+            return new Rope[] {rope, EMPTY};
+        }
+        if (rope instanceof Leaf) {
+            String text = ((Leaf) rope).text;
+            return new Rope[] {new Leaf(text.substring(0, index)), new Leaf(text.substring(index))};
+        }
+        Node node = (Node) rope;
+        if (index < node.left.length()) {
+            Rope[] parts = split(node.left, index);
+            return new Rope[] {parts[0], join(parts[1], node.right)};
+        }
+        Rope[] parts = split(node.right, index - node.left.length());
+        return new Rope[] {join(node.left, parts[0]), parts[1]};
+    }
+
+    private static Rope join(Rope left, Rope right) {
+        if (left.length() == 0) {
+            return right;
+        }
+        if (right.length() == 0) {
+            return left;
+        }
+        if (left instanceof Leaf && right instanceof Leaf && left.length() + right.length() <= LEAF_SIZE) {
+            return new Leaf(((Leaf) left).text + ((Leaf) right).text);
+        }
+        if (left.depth() > right.depth() + 1) {
+            Node node = (Node) left;
+            return balance(node.left, join(node.right, right));
+        }
+        if (right.depth() > left.depth() + 1) {
+            Node node = (Node) right;
+            return balance(join(left, node.left), node.right);
+        }
+        return new Node(left, right);
+    }
+
+    // joins two balanced trees whose depths differ by at most two
+    private static Rope balance(Rope left, Rope right) {
+        if (left.depth() > right.depth() + 1) {
+            Node node = (Node) left;
+            if (node.left.depth() >= node.right.depth()) {
+                return new Node(node.left, new Node(node.right, right));
+            }
+            Node inner = (Node) node.right;
+            return new Node(new Node(node.left, inner.left), new Node(inner.right, right));
+        }
+        if (right.depth() > left.depth() + 1) {
+            Node node = (Node) right;
+            if (node.right.depth() >= node.left.depth()) {
+                return new Node(new Node(left, node.left), node.right);
+            }
+            Node inner = (Node) node.left;
+            return new Node(new Node(left, inner.left), new Node(inner.right, node.right));
+        }
+        return new Node(left, right);
+    }
+
+    private static class Leaf extends Rope {
+        final String text;
+
+        Leaf(String text) {
+            this.text = text;
+        }
+
+        int length() {
+            return text.length();
+        }
+
+        int depth() {
+            return 0;
+        }
+
+        void appendTo(StringBuilder builder) {
+            builder.append(text);
+        }
+    }
+
+    private static class Node extends Rope {
+        final Rope left;
+        final Rope right;
+        final int length;
+        final int depth;
+
+        Node(Rope left, Rope right) {
+            this.left = left;
+            this.right = right;
+            this.length = left.length() + right.length();
+            this.depth = Math.max(left.depth(), right.depth()) + 1;
+        }
+
+        int length() {
+            return length;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        void appendTo(StringBuilder builder) {
+            left.appendTo(builder);
+            right.appendTo(builder);
+        }
+    }
+}
@@ -12,14 +12,51 @@
 // client, usage of a proxy object is similar to using the real object,
 // because both implements the same interface.
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         System.out.println("Hello World!");
 
-        final Image image1 = new ProxyImage("HiRes_10MB_Photo1");
-        final Image image2 = new ProxyImage("HiRes_10MB_Photo2");
+        // some images to load
+        final Path directory = Files.createTempDirectory("images");
+        directory.toFile().deleteOnExit();
+        for (int i = 1; i <= 4; i++) {
+            Files.write(directory.resolve("HiRes_10MB_Photo" + i), new byte[1024]).toFile().deleteOnExit();
+        }
+        final String photo1 = directory.resolve("HiRes_10MB_Photo1").toString();
+        final String photo2 = directory.resolve("HiRes_10MB_Photo2").toString();
+        final String photo3 = directory.resolve("HiRes_10MB_Photo3").toString();
+        final String photo4 = directory.resolve("HiRes_10MB_Photo4").toString();
+
+        final Image image1 = new ProxyImage(photo1);
+        final Image image2 = new ProxyImage(photo2);
 
         image1.displayImage();  // loading necessary
         image1.displayImage();  // loading unnecessary
@@ -27,6 +64,24 @@ public class Main {
         image2.displayImage();  // loading unnecessary
         image2.displayImage();  // loading unnecessary
 
+        // loading ahead of time, off the calling thread
+        final ImageLoader loader = new ImageLoader();
+        loader.prefetch(Arrays.asList(photo3, photo4)).join();
+        loader.proxy(photo3).displayImageAsync().join();  // loading unnecessary
+
+        // every proxy of a file shares the cached copy
+        new ProxyImage(photo1).displayImage();  // loading unnecessary
+        System.out.println("Image cache hit ratio: " + ImageCache.shared().hitRatio());
+
+        // a tiled image read one viewport at a time
+        final Path tiled = directory.resolve("HiRes_Tiled_Photo");
+        tiled.toFile().deleteOnExit();
+        TiledImageFile.write(tiled, ByteBuffer.allocate(2048 * 2048 * 3), 2048, 2048, 3, 256, 4);
+        try (TiledProxyImage image3 = new TiledProxyImage(tiled.toString())) {
+            image3.displayRegion(0, 300, 300, 200, 100);  // loading 1 of the 64 full size tiles
+            image3.displayRegion(3, 0, 0, 256, 256);  // loading the only tile of the thumbnail
+        }
+        System.out.println("Tiles loaded: " + TileCache.shared().missCount());
     }
 }
 
@@ -34,22 +89,64 @@ interface Image {
     public void displayImage();
 }
 
+// An image that can be read piecewise: a rectangle of pixels at one of its
+// resolution levels, level 0 being full size and each next level half the
+// width and height of the previous one. Regions are returned row by row,
+// bytesPerPixel bytes per pixel.
+
+interface RegionImage extends Image {
+    public int levels();
+    public int width(int level);
+    public int height(int level);
+    public int bytesPerPixel();
+    public ByteBuffer readRegion(int level, int x, int y, int width, int height);
+    public void displayRegion(int level, int x, int y, int width, int height);
+}
+
 // On System A
 class RealImage implements Image {
 
+    // How the bytes get into memory: MAPPED lets the OS page the file in on
+    // access with no copy through the heap; DIRECT reads it eagerly into a
+    // buffer outside the heap, for files that may change or go away.
+    enum LoadMode { MAPPED, DIRECT }
+
     private String filename;
+    private ByteBuffer pixels;
     // Constructor
     // @param filename
 
     public RealImage(final String filename) {
+        this(filename, LoadMode.MAPPED);
+    }
+
+    public RealImage(final String filename, final LoadMode mode) {
         this.filename = filename;
-        loadImageFromDisk();
+        loadImageFromDisk(mode);
     }
 
     // Loads the image from the disk
 
-    private void loadImageFromDisk() {
+    private void loadImageFromDisk(final LoadMode mode) {
         System.out.println("Loading " + filename);
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(filename + " is larger than a buffer can hold");
+            }
+            if (mode == LoadMode.MAPPED) {
+                pixels = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // until the whole file is read
+                }
+                buffer.flip();
+                pixels = buffer.asReadOnlyBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load " + filename, e);
+        }
     }
 
     // Displays the image
@@ -57,30 +154,640 @@ class RealImage implements Image {
     public void displayImage() {
         System.out.println("Displaying " + filename);
     }
+
+    // The image bytes, as a read-only view of the loaded buffer: every caller
+    // gets its own position and limit over the same memory, nothing is copied
+
+    public ByteBuffer pixels() {
+        return pixels.duplicate();
+    }
+
+    // Memory held by the loaded image: its mapped or direct buffer, outside
+    // the heap
+
+    public long sizeInBytes() {
+        return pixels.capacity();
+    }
 }
 
 // On System B
 class ProxyImage implements Image {
 
-    private RealImage image;
+    private final ImageCache cache;
     private String filename;
     // Constructor
     // @param filename
 
     public ProxyImage(final String filename) {
+        this(filename, ImageCache.shared());
+    }
+
+    public ProxyImage(final String filename, final ImageCache cache) {
+        this.filename = filename;
+        this.cache = cache;
+    }
+
+    // Diplays the image, loaded through the cache rather than held by the
+    // proxy: proxies of the same file share one copy, and an image no proxy
+    // is displaying can be evicted
+
+    public void displayImage() {
+        cache.get(filename).displayImage();
+    }
+}
+
+// A proxy whose loading happens on an executor instead of the calling thread.
+// The cache coalesces concurrent loads, so an image is loaded once however
+// many threads ask for it, and a failed load is retried on the next access.
+
+class AsyncProxyImage implements Image {
+
+    private final String filename;
+    private final Executor executor;
+    private final ImageCache cache;
+
+    public AsyncProxyImage(final String filename, final Executor executor) {
+        this(filename, executor, ImageCache.shared());
+    }
+
+    public AsyncProxyImage(final String filename, final Executor executor, final ImageCache cache) {
+        this.filename = filename;
+        this.executor = executor;
+        this.cache = cache;
+    }
+
+    // Starts loading unless already loaded or loading; completes with the
+    // real image.
+
+    public CompletableFuture<Image> load() {
+        return cache.load(filename, executor).thenApply(image -> image);
+    }
+
+    public CompletableFuture<Void> displayImageAsync() {
+        return load().thenAccept(Image::displayImage);
+    }
+
+    // Blocks until loaded, for callers of the plain Image interface.
+
+    public void displayImage() {
+        load().join().displayImage();
+    }
+}
+
+// Hands out AsyncProxyImages loading on a shared executor and lets callers
+// warm up images they are about to need. Proxies are cheap and hold no
+// pixels, so they are made on demand rather than kept: the image cache is
+// what shares the loaded images between them.
+
+class ImageLoader {
+
+    // Waiting on the disk, not the CPU, is what a load does, so there are
+    // more loader threads than cores; but a bounded number of them, as a
+    // prefetch of thousands of files must queue rather than start a thread
+    // per file.
+    private static final int LOADER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private final Executor executor;
+
+    // Loads on daemon threads, which go away once idle for a while.
+
+    public ImageLoader() {
+        this(defaultExecutor());
+    }
+
+    public ImageLoader(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public AsyncProxyImage proxy(final String filename) {
+        return new AsyncProxyImage(filename, executor);
+    }
+
+    private static Executor defaultExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "image-loader");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Starts loading all the given images; completes once they are all loaded.
+
+    public CompletableFuture<Void> prefetch(final List<String> filenames) {
+        final CompletableFuture<?>[] loads = new CompletableFuture<?>[filenames.size()];
+        for (int i = 0; i < loads.length; i++) {
+            loads[i] = proxy(filenames.get(i)).load();
+        }
+        return CompletableFuture.allOf(loads);
+    }
+}
+
+// The images loaded by proxies, shared by filename across the process and
+// bounded by the bytes they hold rather than their number. Evicted images are
+// dropped, not kept behind soft references: their bytes are mapped or direct
+// memory outside the heap, which the garbage collector does not count, so it
+// would never clear the references for lack of that memory. A mapped file's
+// pages stay in the OS page cache anyway, so mapping it again soon after is
+// cheap.
+
+class ImageCache extends ByteBoundedCache<String, RealImage> {
+
+    private static final ImageCache SHARED = new ImageCache(
+            Long.getLong("imagecache.maxBytes", 512L * 1024 * 1024));
+
+    public ImageCache(final long maxBytes) {
+        super(maxBytes, RealImage::sizeInBytes);
+    }
+
+    public static ImageCache shared() {
+        return SHARED;
+    }
+
+    // Loads on the calling thread if needed.
+
+    public RealImage get(final String filename) {
+        return get(filename, () -> new RealImage(filename));
+    }
+
+    // Completes with the image, loading it on the executor unless it is
+    // cached or already being loaded.
+
+    public CompletableFuture<RealImage> load(final String filename, final Executor executor) {
+        return load(filename, () -> new RealImage(filename), executor);
+    }
+}
+
+// A cache bounded by the bytes its values hold rather than their number,
+// evicting the least recently used values once the budget is exceeded.
+// Values are loaded outside the cache's lock, so a slow load never holds up
+// lookups of other keys, and concurrent requests for a key that is not
+// cached share a single load. A failed load is not cached: the next request
+// tries again.
+
+class ByteBoundedCache<K, V> {
+
+    private final long maxBytes;
+    private final ToLongFunction<V> sizeInBytes;
+    private final LinkedHashMap<K, V> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private long residentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // loads by duration: bucket i counts loads of [2^(i-1), 2^i) microseconds
+    private final AtomicLongArray loadTimes = new AtomicLongArray(40);
+
+    public ByteBoundedCache(final long maxBytes, final ToLongFunction<V> sizeInBytes) {
+        this.maxBytes = maxBytes;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    // Loads on the calling thread if needed.
+
+    public V get(final K key, final Supplier<V> loader) {
+        try {
+            return load(key, loader, Runnable::run).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Completes with the value, loading it on the executor unless it is
+    // cached or already being loaded.
+
+    public CompletableFuture<V> load(final K key, final Supplier<V> loader, final Executor executor) {
+        V value = lookup(key);
+        if (value != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(value);
+        }
+        final CompletableFuture<V> started = new CompletableFuture<>();
+        final CompletableFuture<V> inFlight = loading.putIfAbsent(key, started);
+        if (inFlight != null) {
+            hits.increment();
+            return inFlight;
+        }
+        // a load may have completed between the lookup and claiming the key
+        value = lookup(key);
+        if (value != null) {
+            loading.remove(key, started);
+            hits.increment();
+            started.complete(value);
+            return started;
+        }
+        misses.increment();
+        try {
+            executor.execute(() -> {
+                try {
+                    final long start = System.nanoTime();
+                    final V loaded = loader.get();
+                    recordLoadTime(System.nanoTime() - start);
+                    insert(key, loaded);
+                    loading.remove(key, started);
+                    started.complete(loaded);
+                } catch (Throwable e) {
+                    loading.remove(key, started);
+                    started.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(key, started);
+            started.completeExceptionally(e);
+        }
+        return started;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public double hitRatio() {
+        final long hitCount = hitCount();
+        final long total = hitCount + missCount();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    public synchronized long residentBytes() {
+        return residentBytes;
+    }
+
+    public long[] loadTimeHistogram() {
+        final long[] histogram = new long[loadTimes.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = loadTimes.get(i);
+        }
+        return histogram;
+    }
+
+    private synchronized V lookup(final K key) {
+        return resident.get(key);
+    }
+
+    private synchronized void insert(final K key, final V value) {
+        final V previous = resident.put(key, value);
+        if (previous != null) {
+            residentBytes -= sizeInBytes.applyAsLong(previous);
+        }
+        residentBytes += sizeInBytes.applyAsLong(value);
+        final Iterator<V> eldest = resident.values().iterator();
+        while (residentBytes > maxBytes && eldest.hasNext()) {
+            residentBytes -= sizeInBytes.applyAsLong(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private void recordLoadTime(final long nanos) {
+        final long micros = Math.max(nanos / 1000, 0);
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), loadTimes.length() - 1);
+        loadTimes.incrementAndGet(bucket);
+    }
+}
+
+// The tiled file format read by TiledProxyImage, all integers big-endian:
+//
+//      header      magic "TILE", width, height, tileSize, bytesPerPixel, levels
+//      index       per level, per tile row by row: data offset (long), length (int)
+//      data        per tile, its pixels row by row; tiles on the right and
+//                  bottom edges only hold the pixels inside the image
+//
+// Opening a file reads the header and index only; tiles are read with
+// positional reads when asked for.
+
+class TiledImageFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x54494C45;
+    private static final int HEADER_SIZE = 24;
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int bytesPerPixel;
+    private final int levels;
+    // first index entry of each level
+    private final int[] levelStart;
+    private final long[] tileOffsets;
+    private final int[] tileLengths;
+
+    public TiledImageFile(final Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = readFully(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " is not a tiled image");
+            }
+            width = header.getInt();
+            height = header.getInt();
+            tileSize = header.getInt();
+            bytesPerPixel = header.getInt();
+            levels = header.getInt();
+            levelStart = new int[levels + 1];
+            for (int level = 0; level < levels; level++) {
+                levelStart[level + 1] = levelStart[level] + tilesAcross(level) * tilesDown(level);
+            }
+            final int tiles = levelStart[levels];
+            final ByteBuffer index = readFully(HEADER_SIZE, tiles * INDEX_ENTRY_SIZE);
+            tileOffsets = new long[tiles];
+            tileLengths = new int[tiles];
+            for (int i = 0; i < tiles; i++) {
+                tileOffsets[i] = index.getLong();
+                tileLengths[i] = index.getInt();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int width(final int level) {
+        return Math.max(1, width >> level);
+    }
+
+    public int height(final int level) {
+        return Math.max(1, height >> level);
+    }
+
+    public int tileSize() {
+        return tileSize;
+    }
+
+    public int bytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    public int levels() {
+        return levels;
+    }
+
+    public int tilesAcross(final int level) {
+        return (width(level) + tileSize - 1) / tileSize;
+    }
+
+    public int tilesDown(final int level) {
+        return (height(level) + tileSize - 1) / tileSize;
+    }
+
+    // The pixels of one tile, tileWidth(level, column) bytes-per-pixel wide.
+
+    public ByteBuffer readTile(final int level, final int column, final int row) throws IOException {
+        final int tile = levelStart[level] + row * tilesAcross(level) + column;
+        return readFully(tileOffsets[tile], tileLengths[tile]).asReadOnlyBuffer();
+    }
+
+    public int tileWidth(final int level, final int column) {
+        return Math.min(tileSize, width(level) - column * tileSize);
+    }
+
+    public int tileHeight(final int level, final int row) {
+        return Math.min(tileSize, height(level) - row * tileSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer readFully(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated tiled image");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Writes pixels (width x height, row by row) as a tiled file, each level
+    // sampling every other pixel of the level before it.
+
+    public static void write(final Path path, final ByteBuffer pixels, final int width, final int height,
+                             final int bytesPerPixel, final int tileSize, final int levels) throws IOException {
+        final List<ByteBuffer> levelPixels = new ArrayList<>();
+        levelPixels.add(pixels.duplicate());
+        int tiles = 0;
+        for (int level = 0; level < levels; level++) {
+            final int levelWidth = Math.max(1, width >> level);
+            final int levelHeight = Math.max(1, height >> level);
+            tiles += ((levelWidth + tileSize - 1) / tileSize) * ((levelHeight + tileSize - 1) / tileSize);
+            if (level > 0) {
+                final ByteBuffer previous = levelPixels.get(level - 1);
+                final int previousWidth = Math.max(1, width >> (level - 1));
+                final int previousHeight = Math.max(1, height >> (level - 1));
+                final ByteBuffer sampled = ByteBuffer.allocate(levelWidth * levelHeight * bytesPerPixel);
+                for (int y = 0; y < levelHeight; y++) {
+                    for (int x = 0; x < levelWidth; x++) {
+                        final int source = (Math.min(2 * y, previousHeight - 1) * previousWidth
+                                + Math.min(2 * x, previousWidth - 1)) * bytesPerPixel;
+                        for (int b = 0; b < bytesPerPixel; b++) {
+                            sampled.put(previous.get(source + b));
+                        }
+                    }
+                }
+                sampled.flip();
+                levelPixels.add(sampled);
+            }
+        }
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + tiles * INDEX_ENTRY_SIZE);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(tileSize).putInt(bytesPerPixel).putInt(levels);
+            long offset = header.capacity();
+            out.position(offset);
+            for (int level = 0; level < levels; level++) {
+                final ByteBuffer source = levelPixels.get(level);
+                final int levelWidth = Math.max(1, width >> level);
+                final int levelHeight = Math.max(1, height >> level);
+                for (int top = 0; top < levelHeight; top += tileSize) {
+                    for (int left = 0; left < levelWidth; left += tileSize) {
+                        final int tileWidth = Math.min(tileSize, levelWidth - left);
+                        final int tileHeight = Math.min(tileSize, levelHeight - top);
+                        final ByteBuffer tile = ByteBuffer.allocate(tileWidth * tileHeight * bytesPerPixel);
+                        for (int y = 0; y < tileHeight; y++) {
+                            final ByteBuffer line = source.duplicate();
+                            line.position(((top + y) * levelWidth + left) * bytesPerPixel);
+                            line.limit(line.position() + tileWidth * bytesPerPixel);
+                            tile.put(line);
+                        }
+                        tile.flip();
+                        header.putLong(offset).putInt(tile.remaining());
+                        offset += tile.remaining();
+                        while (tile.hasRemaining()) {
+                            out.write(tile);
+                        }
+                    }
+                }
+            }
+            header.flip();
+            // the header goes at the start of the file, where the buffer's
+            // position is also the file's
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+        }
+    }
+}
+
+// A proxy over a tiled image file that never materializes the whole image:
+// a region request loads only the tiles it overlaps, at the level asked for,
+// so a thumbnail or a viewport costs a few tiles of I/O and heap. Tiles are
+// cached on their own, shared with every proxy through the TileCache.
+// Closing the proxy closes the file; it is opened again if the image is
+// read once more.
+
+class TiledProxyImage implements RegionImage, AutoCloseable {
+
+    private final String filename;
+    private final TileCache cache;
+    private volatile TiledImageFile file;
+
+    public TiledProxyImage(final String filename) {
+        this(filename, TileCache.shared());
+    }
+
+    public TiledProxyImage(final String filename, final TileCache cache) {
         this.filename = filename;
+        this.cache = cache;
+    }
+
+    public int levels() {
+        return file().levels();
     }
 
-    // Diplays the image
+    public int width(final int level) {
+        return file().width(level);
+    }
+
+    public int height(final int level) {
+        return file().height(level);
+    }
+
+    public int bytesPerPixel() {
+        return file().bytesPerPixel();
+    }
+
+    public ByteBuffer readRegion(final int level, final int x, final int y, final int width, final int height) {
+        final TiledImageFile image = file();
+        if (level < 0 || level >= image.levels() || x < 0 || y < 0 || width < 0 || height < 0
+                || x + width > image.width(level) || y + height > image.height(level)) {
+            throw new IndexOutOfBoundsException("Region " + width + "x" + height + "+" + x + "+" + y
+                    + " at level " + level + " of " + filename);
+        }
+        final int pixel = image.bytesPerPixel();
+        final int tileSize = image.tileSize();
+        final ByteBuffer region = ByteBuffer.allocate(width * height * pixel);
+        if (width == 0 || height == 0) {
+            return region;
+        }
+        for (int row = y / tileSize; row <= (y + height - 1) / tileSize; row++) {
+            for (int column = x / tileSize; column <= (x + width - 1) / tileSize; column++) {
+                final ByteBuffer tile = tile(image, level, column, row);
+                final int tileWidth = image.tileWidth(level, column);
+                // the part of the region inside this tile, in image coordinates
+                final int left = Math.max(x, column * tileSize);
+                final int right = Math.min(x + width, column * tileSize + tileWidth);
+                final int top = Math.max(y, row * tileSize);
+                final int bottom = Math.min(y + height, row * tileSize + image.tileHeight(level, row));
+                for (int line = top; line < bottom; line++) {
+                    final ByteBuffer source = tile.duplicate();
+                    source.position(((line - row * tileSize) * tileWidth + left - column * tileSize) * pixel);
+                    source.limit(source.position() + (right - left) * pixel);
+                    region.position(((line - y) * width + left - x) * pixel);
+                    region.put(source);
+                }
+            }
+        }
+        region.clear();
+        return region;
+    }
+
+    public void displayRegion(final int level, final int x, final int y, final int width, final int height) {
+        readRegion(level, x, y, width, height);
+        System.out.println("Displaying " + width + "x" + height + " at (" + x + ", " + y + "), level "
+                + level + " of " + filename);
+    }
 
     public void displayImage() {
-        if (image == null) {
-            image = new RealImage(filename);
+        displayRegion(0, 0, 0, width(0), height(0));
+    }
+
+    private ByteBuffer tile(final TiledImageFile image, final int level, final int column, final int row) {
+        return cache.get(filename, level, column, row, () -> {
+            try {
+                return image.readTile(level, column, row);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot load tile of " + filename, e);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        final TiledImageFile opened = file;
+        if (opened != null) {
+            file = null;
+            try {
+                opened.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot close " + filename, e);
+            }
+        }
+    }
+
+    // Opening only reads the header and tile index.
+
+    private TiledImageFile file() {
+        TiledImageFile opened = file;
+        if (opened == null) {
+            synchronized (this) {
+                opened = file;
+                if (opened == null) {
+                    System.out.println("Opening " + filename);
+                    try {
+                        opened = new TiledImageFile(Paths.get(filename));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Cannot open " + filename, e);
+                    }
+                    file = opened;
+                }
+            }
         }
-        image.displayImage();
+        return opened;
     }
 }
 
+// Tiles of every tiled image in the process, keyed by file, level and
+// position, and bounded by the bytes they hold.
 
+class TileCache extends ByteBoundedCache<String, ByteBuffer> {
 
+    private static final TileCache SHARED = new TileCache(
+            Long.getLong("tilecache.maxBytes", 256L * 1024 * 1024));
 
+    public TileCache(final long maxBytes) {
+        super(maxBytes, ByteBuffer::capacity);
+    }
+
+    public static TileCache shared() {
+        return SHARED;
+    }
+
+    public ByteBuffer get(final String filename, final int level, final int column, final int row,
+                          final Supplier<ByteBuffer> loader) {
+        return get(filename + '#' + level + '/' + column + '/' + row, loader);
+    }
+}